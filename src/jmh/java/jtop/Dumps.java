@@ -0,0 +1,51 @@
+package jtop;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Synthetic jstack dumps for the benchmarks. The 100 and 1000 thread dumps are
+ * checked in; larger ones are built by repeating the 1000 thread dump with the
+ * thread names and ids changed, to keep the repository small.
+ */
+final class Dumps {
+
+    private static final int BASE = 1000;
+
+    private Dumps() { }
+
+    static byte[] load(int threads) throws IOException {
+        InputStream resource = Dumps.class.getResourceAsStream("threads-" + threads + ".txt.gz");
+        if (resource != null) {
+            return read(resource);
+        }
+        if (threads % BASE != 0) {
+            throw new IllegalArgumentException("No dump of " + threads + " threads");
+        }
+
+        String base = new String(load(BASE), StandardCharsets.UTF_8);
+        int body = base.indexOf("\n\n") + 2;
+        StringBuilder dump = new StringBuilder(base.length() * (threads / BASE));
+        dump.append(base, 0, body);
+        for (int copy = 0; copy < threads / BASE; copy++) {
+            dump.append(base.substring(body)
+                .replace("\"pool-", "\"copy-" + copy + "-pool-")
+                .replace("tid=0x00007f", String.format("tid=0x%04x7f", copy)));
+        }
+        return dump.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static byte[] read(InputStream resource) throws IOException {
+        try (InputStream in = new GZIPInputStream(resource)) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[64 * 1024];
+            for (int read; (read = in.read(buffer)) > 0; ) {
+                out.write(buffer, 0, read);
+            }
+            return out.toByteArray();
+        }
+    }
+}
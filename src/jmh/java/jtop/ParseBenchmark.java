@@ -0,0 +1,51 @@
+package jtop;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Parsing a jstack dump into threads, what Executor.sampleJvm does with the
+ * output of every jstack run, on the fork/join pool and on one thread.
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class ParseBenchmark {
+
+    @Param({ "100", "1000", "10000" })
+    public int threads;
+
+    private byte[] dump;
+
+    @Setup
+    public void setup() throws IOException {
+        dump = Dumps.load(threads);
+    }
+
+    @Benchmark
+    public List<ThreadInfo> parse() throws IOException {
+        return StackDumpParser.parse("1", new ByteArrayInputStream(dump));
+    }
+
+    @Benchmark
+    public List<ThreadInfo> parseOneThread() throws IOException {
+        List<ThreadInfo> threads = new ArrayList<>();
+        new StackDumpParser("1", threads::add).read(new ByteArrayInputStream(dump));
+        return threads;
+    }
+}
@@ -0,0 +1,71 @@
+package jtop;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Adding a sample to the stacks trie, rendering the whole trie, and adding a
+ * sample and rendering one screen of it as the stacks view does after every
+ * sample.
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class StacksBenchmark {
+
+    @Param({ "100", "1000", "10000" })
+    public int threads;
+
+    private List<ThreadInfo> sample;
+    private StacksPrinter ingest;
+    private StacksPrinter render;
+    private StacksPrinter screen;
+
+    @Setup
+    public void setup() throws IOException {
+        sample = StackDumpParser.parse("1", new ByteArrayInputStream(Dumps.load(threads)));
+
+        Config config = new Config();
+        config.setPid("1");
+        // render every node, the worst case of the stacks view
+        config.parseStacksLimitPercent("0");
+
+        ingest = new StacksPrinter(config);
+        ingest.addSample(System.currentTimeMillis(), sample);
+        render = new StacksPrinter(config);
+        render.addSample(System.currentTimeMillis(), sample);
+        screen = new StacksPrinter(config);
+        screen.addSample(System.currentTimeMillis(), sample);
+    }
+
+    @Benchmark
+    public StacksPrinter ingest() {
+        ingest.addSample(System.currentTimeMillis(), sample);
+        return ingest;
+    }
+
+    @Benchmark
+    public List<String> render() {
+        return render.render();
+    }
+
+    @Benchmark
+    public List<String> screen() {
+        screen.addSample(System.currentTimeMillis(), sample);
+        return screen.render(0, 50);
+    }
+}
@@ -0,0 +1,70 @@
+package jtop;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import jtop.TopPrinter.Stat;
+
+/**
+ * Updating the per thread history with a sample and ranking the top threads,
+ * and rendering them, as the cpu view does after every sample.
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class TopBenchmark {
+
+    @Param({ "100", "1000", "10000" })
+    public int threads;
+
+    private Config config;
+    private TopPrinter printer;
+    private List<ThreadInfo> last;
+    private List<ThreadInfo> current;
+    private ThreadHistory history;
+    private long time;
+    private List<Stat> stats;
+
+    @Setup
+    public void setup() throws IOException {
+        byte[] dump = Dumps.load(threads);
+        last = StackDumpParser.parse("1", new ByteArrayInputStream(dump));
+        current = StackDumpParser.parse("1", new ByteArrayInputStream(dump));
+
+        config = new Config();
+        config.setPid("1");
+        // keep every thread in the running, so the whole sample is ranked
+        config.parseCpuTimeCutoff("0");
+        printer = new TopPrinter(config);
+        history = new ThreadHistory();
+        history.add(time++, last);
+        history.add(time++, current);
+        stats = history.top(config);
+    }
+
+    @Benchmark
+    public List<Stat> sort() {
+        // alternate the samples so every thread has a delta, like a live session
+        history.add(time, (time++ & 1) == 0 ? last : current);
+        return history.top(config);
+    }
+
+    @Benchmark
+    public List<String> render() {
+        return printer.render(stats);
+    }
+}
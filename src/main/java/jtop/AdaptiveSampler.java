@@ -0,0 +1,138 @@
+package jtop;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Adjusts the interval after every sample so that the time spent sampling stays
+ * under a share of wall time, measured over the last HISTORY samples. Within that
+ * budget the interval is halved when the process's cpu usage jumps, grows
+ * quickly while it is idle and slowly otherwise, up to the interval that was
+ * configured (or set with the interval command since).
+ */
+public class AdaptiveSampler implements Sampler {
+
+    private static final long MIN_INTERVAL = 50;
+    private static final int HISTORY = 16;
+    private static final double IDLE_CORES = 0.05;
+    private static final double SPIKE_CORES = 0.5;
+
+    private final Config config;
+    private final Sampler sampler;
+    private final double budget;
+    private final long[] starts = new long[HISTORY];
+    private final long[] costs = new long[HISTORY];
+    private long maxInterval;
+    private long lastInterval;
+    private int samples;
+    private double lastCpu = -1;
+    private long lastCpuTime;
+    private double averageLoad = -1;
+    private volatile double overhead;
+
+    /**
+     * @param budget the share of wall time sampling may take, e.g. 0.01 for 1%
+     */
+    public AdaptiveSampler(Config config, Sampler sampler, double budget) {
+        this.config = config;
+        this.sampler = sampler;
+        this.budget = budget;
+        this.maxInterval = config.getInterval();
+        this.lastInterval = maxInterval;
+    }
+
+    @Override
+    public List<ThreadInfo> sample() throws IOException {
+        long start = System.nanoTime();
+        List<ThreadInfo> threads = sampler.sample();
+        adapt(start, System.nanoTime(), threads);
+        return threads;
+    }
+
+    @Override
+    public List<ThreadInfo> sampleCpu() throws IOException {
+        long start = System.nanoTime();
+        List<ThreadInfo> threads = sampler.sampleCpu();
+        adapt(start, System.nanoTime(), threads);
+        return threads;
+    }
+
+    @Override
+    public boolean cpuSamplesHaveStacks() {
+        return sampler.cpuSamplesHaveStacks();
+    }
+
+    private synchronized void adapt(long start, long end, List<ThreadInfo> threads) {
+        int slot = samples++ % HISTORY;
+        starts[slot] = start;
+        costs[slot] = end - start;
+
+        int count = Math.min(samples, HISTORY);
+        long oldest = starts[samples > HISTORY ? samples % HISTORY : 0];
+        long cost = 0;
+        for (int i = 0; i < count; i++) {
+            cost += costs[i];
+        }
+        overhead = (double)cost / Math.max(1, end - oldest);
+
+        long interval = config.getInterval();
+        if (interval != lastInterval) {
+            // set by hand, so that is the longest interval wanted now
+            maxInterval = interval;
+        }
+
+        long target = interval;
+        double load = load(end, threads);
+        if (load >= 0 && averageLoad >= 0) {
+            if (load > Math.max(averageLoad * 2, averageLoad + SPIKE_CORES)) {
+                target = interval / 2;
+            } else if (load < IDLE_CORES) {
+                target = interval * 3 / 2;
+            } else {
+                target = interval * 11 / 10;
+            }
+        }
+        if (load >= 0) {
+            averageLoad = averageLoad < 0 ? load : averageLoad * 0.8 + load * 0.2;
+        }
+
+        target = Math.max(MIN_INTERVAL, Math.min(target, maxInterval));
+        if (count >= 4) {
+            // the budget wins over everything, even the longest interval wanted
+            target = Math.max(target, (long)(interval * overhead / budget));
+        }
+        config.setInterval(target);
+        lastInterval = target;
+    }
+
+    /**
+     * @return the cores the process used since the last sample, or -1 for the first
+     */
+    private double load(long time, List<ThreadInfo> threads) {
+        double cpu = 0;
+        for (ThreadInfo thread : threads) {
+            cpu += thread.getCpuTime();
+        }
+        double load = -1;
+        if (lastCpu >= 0) {
+            // threads that ended take their cpu time with them, so this can go down
+            load = Math.max(0, cpu - lastCpu) / ((time - lastCpuTime) / 1000000.0);
+        }
+        lastCpu = cpu;
+        lastCpuTime = time;
+        return load;
+    }
+
+    @Override
+    public String getStatus() {
+        String status = String.format("interval %.2fs, overhead %.2f%% of %.2f%%",
+            config.getInterval() / 1000.0, overhead * 100, budget * 100);
+        String inner = sampler.getStatus();
+        return inner == null ? status : status + " | " + inner;
+    }
+
+    @Override
+    public void close() throws IOException {
+        sampler.close();
+    }
+}
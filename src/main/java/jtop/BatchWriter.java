@@ -0,0 +1,209 @@
+package jtop;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Collection;
+
+import jtop.TopPrinter.Stat;
+
+/**
+ * Writes one record per sample of the top threads, either as a line of JSON or
+ * as CSV rows (one per thread). Everything is appended to a single reused
+ * buffer and written with one call per sample, so batch mode keeps up with
+ * short intervals without producing garbage.
+ */
+public class BatchWriter {
+
+    public enum Format {
+        JSON,
+        CSV
+    }
+
+    private final Writer writer;
+    private final Format format;
+    private final int frames;
+    private final StringBuilder builder = new StringBuilder(8192);
+    private boolean headerWritten;
+
+    public BatchWriter(Writer writer, Format format, int frames) {
+        this.writer = writer;
+        this.format = format;
+        this.frames = frames;
+    }
+
+    public void write(long time, String pid, Collection<Stat> stats) throws IOException {
+        builder.setLength(0);
+        if (format == Format.JSON) {
+            json(time, pid, stats);
+        } else {
+            csv(time, pid, stats);
+        }
+        writer.append(builder);
+        writer.flush();
+    }
+
+    private void json(long time, String pid, Collection<Stat> stats) {
+        builder.append("{\"time\":").append(time);
+        builder.append(",\"pid\":");
+        jsonString(pid);
+        builder.append(",\"threads\":[");
+        boolean first = true;
+        for (Stat stat : stats) {
+            if (!first) {
+                builder.append(',');
+            }
+            first = false;
+            builder.append("{\"id\":");
+            jsonString(stat.getId());
+            if (!stat.getThread().getPid().equals(pid)) {
+                // only needed when several JVMs share the sample
+                builder.append(",\"pid\":");
+                jsonString(stat.getThread().getPid());
+            }
+            builder.append(",\"name\":");
+            jsonString(stat.getName());
+            builder.append(",\"cpu_ms\":");
+            decimal(stat.getCurrentTime());
+            builder.append(",\"total_cpu_ms\":");
+            decimal(stat.getTotalTime());
+            if (frames > 0) {
+                builder.append(",\"frames\":[");
+                int[] ids = stat.getThread().getFrames();
+                for (int i = 0; i < ids.length && i < frames; i++) {
+                    if (i > 0) {
+                        builder.append(',');
+                    }
+                    jsonString(FrameDictionary.get(ids[i]));
+                }
+                builder.append(']');
+            }
+            builder.append('}');
+        }
+        builder.append("]}\n");
+    }
+
+    private void csv(long time, String pid, Collection<Stat> stats) {
+        if (!headerWritten) {
+            builder.append("time,pid,rank,id,name,cpu_ms,total_cpu_ms");
+            if (frames > 0) {
+                builder.append(",frames");
+            }
+            builder.append('\n');
+            headerWritten = true;
+        }
+        int rank = 1;
+        for (Stat stat : stats) {
+            builder.append(time).append(',');
+            csvString(stat.getThread().getPid());
+            builder.append(',').append(rank++).append(',');
+            csvString(stat.getId());
+            builder.append(',');
+            csvString(stat.getName());
+            builder.append(',');
+            decimal(stat.getCurrentTime());
+            builder.append(',');
+            decimal(stat.getTotalTime());
+            if (frames > 0) {
+                // frames go in one field, innermost first, separated by " <- "
+                builder.append(",\"");
+                int[] ids = stat.getThread().getFrames();
+                for (int i = 0; i < ids.length && i < frames; i++) {
+                    if (i > 0) {
+                        builder.append(" <- ");
+                    }
+                    String frame = FrameDictionary.get(ids[i]);
+                    for (int c = 0; c < frame.length(); c++) {
+                        char ch = frame.charAt(c);
+                        if (ch == '"') {
+                            builder.append('"');
+                        }
+                        builder.append(ch);
+                    }
+                }
+                builder.append('"');
+            }
+            builder.append('\n');
+        }
+    }
+
+    /**
+     * Appends a number with three decimals without going through Double.toString.
+     */
+    private void decimal(double value) {
+        long thousandths = Math.round(value * 1000);
+        if (thousandths < 0) {
+            builder.append('-');
+            thousandths = -thousandths;
+        }
+        builder.append(thousandths / 1000).append('.');
+        long fraction = thousandths % 1000;
+        if (fraction < 100) {
+            builder.append('0');
+        }
+        if (fraction < 10) {
+            builder.append('0');
+        }
+        builder.append(fraction);
+    }
+
+    private void jsonString(String str) {
+        jsonString(builder, str);
+    }
+
+    /**
+     * Appends the string as a quoted JSON string.
+     */
+    static void jsonString(StringBuilder builder, String str) {
+        builder.append('"');
+        for (int i = 0; i < str.length(); i++) {
+            char c = str.charAt(i);
+            switch (c) {
+                case '"':
+                    builder.append("\\\"");
+                    break;
+                case '\\':
+                    builder.append("\\\\");
+                    break;
+                case '\n':
+                    builder.append("\\n");
+                    break;
+                case '\r':
+                    builder.append("\\r");
+                    break;
+                case '\t':
+                    builder.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        builder.append("\\u00");
+                        builder.append(Character.forDigit(c >> 4, 16));
+                        builder.append(Character.forDigit(c & 0xF, 16));
+                    } else {
+                        builder.append(c);
+                    }
+            }
+        }
+        builder.append('"');
+    }
+
+    private void csvString(String str) {
+        boolean quote = false;
+        for (int i = 0; i < str.length() && !quote; i++) {
+            char c = str.charAt(i);
+            quote = c == ',' || c == '"' || c == '\n' || c == '\r';
+        }
+        if (!quote) {
+            builder.append(str);
+            return;
+        }
+        builder.append('"');
+        for (int i = 0; i < str.length(); i++) {
+            char c = str.charAt(i);
+            if (c == '"') {
+                builder.append('"');
+            }
+            builder.append(c);
+        }
+        builder.append('"');
+    }
+}
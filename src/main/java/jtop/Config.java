@@ -1,42 +1,106 @@
 package jtop;
 
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.regex.Pattern;
 
 public class Config {
     
-    private volatile String frameFilter;
+    private volatile FrameFilter frameFilter;
     private volatile boolean negateFrameFilter;
     private volatile Pattern nameRegex;
     private volatile boolean negateNameRegex;
     private volatile long interval = 5000;
     private volatile String pid;
+    private volatile List<String> pids;
+    private volatile Sampler sampler;
     private volatile long cpuTimeCutoff = 1;
     private volatile int topLimit = 20;
     private volatile double stacksLimitPercent = 0.05;
-    private volatile Printer active;
-    private volatile Printer other;
+    private volatile int stacksWindow = 0;
+    private volatile long stacksHalfLife = 0;
+    private volatile boolean onCpuOnly;
+    private volatile boolean sortByAllocation;
+    private volatile boolean showHistory = true;
+    private volatile List<Printer> printers;
+    private volatile int active;
 
-    public void swapActive() {
-        Printer swap = active;
-        active = other;
-        other = swap;
-
-        active.setActive(true);
-        other.setActive(false);
+    /**
+     * Makes the next printer the active one, going back to the first after the last.
+     */
+    public synchronized void swapActive() {
+        printers.get(active).setActive(false);
+        active = (active + 1) % printers.size();
+        printers.get(active).setActive(true);
     }
 
-    public void setActive(Printer active, Printer other) {
+    public synchronized void setPrinters(List<Printer> printers, int active) {
+        this.printers = printers;
         this.active = active;
-        this.other = other;
+        for (int i = 0; i < printers.size(); i++) {
+            printers.get(i).setActive(i == active);
+        }
     }
 
     public Printer getActive() {
-        return active;
+        return printers.get(active);
+    }
+
+    /**
+     * @return whether the active printer needs the java.util.concurrent locks each
+     * thread owns, false when there is no printer
+     */
+    public boolean needsSynchronizers() {
+        List<Printer> printers = this.printers;
+        return printers != null && printers.get(active).needsSynchronizers();
+    }
+
+    /**
+     * @return whether the stacks view only counts RUNNABLE threads
+     */
+    public boolean isOnCpuOnly() {
+        return onCpuOnly;
+    }
+    public void setOnCpuOnly(boolean onCpuOnly) {
+        this.onCpuOnly = onCpuOnly;
+    }
+
+    /**
+     * @return whether the top view ranks threads by allocation rate instead of cpu
+     */
+    public boolean isSortByAllocation() {
+        return sortByAllocation;
+    }
+    public void setSortByAllocation(boolean sortByAllocation) {
+        this.sortByAllocation = sortByAllocation;
+    }
+
+    /**
+     * @return whether the top view shows the recent cpu history and averages of each thread
+     */
+    public boolean isShowHistory() {
+        return showHistory;
+    }
+    public void setShowHistory(boolean showHistory) {
+        this.showHistory = showHistory;
     }
 
     public double getStacksLimitPercent() {
         return stacksLimitPercent;
     }
+    /**
+     * @return the number of most recent samples the stacks view counts, or 0 for all of them
+     */
+    public int getStacksWindow() {
+        return stacksWindow;
+    }
+    /**
+     * @return the half-life in ms with which the stacks view forgets old samples, or 0 for never
+     */
+    public long getStacksHalfLife() {
+        return stacksHalfLife;
+    }
     public long getCpuTimeCutoff() {
         return cpuTimeCutoff;
     }
@@ -45,10 +109,30 @@ public class Config {
     }
     public void setPid(String pid) {
         this.pid = pid;
+        this.pids = Collections.singletonList(pid);
     }
+    public void setPids(List<String> pids) {
+        this.pid = String.join(",", pids);
+        this.pids = pids;
+    }
+    /**
+     * @return the pid, or the comma separated pids when monitoring several JVMs
+     */
     public String getPid() {
         return pid;
     }
+    public List<String> getPids() {
+        return pids;
+    }
+    public boolean isMultiJvm() {
+        return pids.size() > 1;
+    }
+    public void setSampler(Sampler sampler) {
+        this.sampler = sampler;
+    }
+    public Sampler getSampler() {
+        return sampler;
+    }
     public void setInterval(long interval) {
         this.interval = interval;
     }
@@ -62,7 +146,8 @@ public class Config {
         return negateNameRegex;
     }
     public String getFrameFilter() {
-        return frameFilter;
+        FrameFilter frameFilter = this.frameFilter;
+        return frameFilter == null ? null : frameFilter.frame;
     }
     public boolean isNegateFrameFilter() {
         return negateFrameFilter;
@@ -99,11 +184,11 @@ public class Config {
         if (negateFrameFilter) {
             frameFilter = frameFilter.substring(1);
         }
-        this.frameFilter = frameFilter.isEmpty() ? null : frameFilter;
+        this.frameFilter = frameFilter.isEmpty() ? null : new FrameFilter(frameFilter);
     }
 
     public void setFrameFilter(String frameFilter, boolean negate) {
-        this.frameFilter = frameFilter;
+        this.frameFilter = frameFilter == null ? null : new FrameFilter(frameFilter);
         this.negateFrameFilter = negate;
     }
     
@@ -126,11 +211,13 @@ public class Config {
     }
 
     public int findMatchingFrame(ThreadInfo info) {
-        if (!hasFrameFilter()) {
-            return info.getFrames().size() - 1;
+        int[] frames = info.getFrames();
+        FrameFilter frameFilter = this.frameFilter;
+        if (frameFilter == null) {
+            return frames.length - 1;
         } else {
-            for (int i = 0; i < info.getFrames().size(); i++) {
-                if (info.getFrames().indexOf(frameFilter) > 0) {
+            for (int i = 0; i < frames.length; i++) {
+                if (frameFilter.matches(frames[i])) {
                     return i;
                 }
             }
@@ -162,6 +249,44 @@ public class Config {
             System.out.println("Invalid top limit: " + ex.getMessage());
         }
 	}
+	/**
+	 * Parses a stacks window: a number of samples, a half-life such as "30s" or "5m",
+	 * or nothing (or 0) to count every sample.
+	 */
+	public void parseStacksWindow(String input) {
+        try {
+            input = input.trim();
+            if (input.isEmpty() || input.equals("0")) {
+                stacksWindow = 0;
+                stacksHalfLife = 0;
+            } else if (input.endsWith("s") || input.endsWith("m")) {
+                double amount = Double.parseDouble(input.substring(0, input.length() - 1));
+                long halfLife = (long)(amount * (input.endsWith("m") ? 60000 : 1000));
+                if (halfLife <= 0) {
+                    throw new IllegalArgumentException("half-life must be positive");
+                }
+                stacksWindow = 0;
+                stacksHalfLife = halfLife;
+            } else {
+                int window = Integer.parseInt(input);
+                if (window < 0) {
+                    throw new IllegalArgumentException("window must be positive");
+                }
+                stacksWindow = window;
+                stacksHalfLife = 0;
+            }
+        } catch (Exception ex) {
+            System.out.println("Invalid window: " + ex.getMessage());
+        }
+	}
+	public String getStacksWindowString() {
+        if (stacksWindow > 0) {
+            return stacksWindow + " samples";
+        } else if (stacksHalfLife > 0) {
+            return (stacksHalfLife / 1000.0) + "s half-life";
+        }
+        return "all";
+	}
 	public void parseStacksLimitPercent(String input) {
         try {
             stacksLimitPercent = (double)Integer.parseInt(input) / 100.0;
@@ -170,4 +295,31 @@ public class Config {
         }
 	}
 
+
+    /**
+     * A frame filter along with the filter's answer for every frame id checked so
+     * far, so each distinct frame is only searched once per filter. Races between
+     * printer threads only ever cost a repeated search.
+     */
+    private static class FrameFilter {
+        private final String frame;
+        private volatile byte[] matches = new byte[0];
+
+        private FrameFilter(String frame) {
+            this.frame = frame;
+        }
+
+        private boolean matches(int id) {
+            byte[] matches = this.matches;
+            if (id >= matches.length) {
+                matches = Arrays.copyOf(matches, Math.max(id + 1, FrameDictionary.size()));
+                this.matches = matches;
+            }
+            if (matches[id] == 0) {
+                matches[id] = FrameDictionary.get(id).contains(frame) ? (byte)1 : (byte)2;
+            }
+            return matches[id] == 1;
+        }
+    }
+
 }
\ No newline at end of file
@@ -4,7 +4,11 @@ import static org.jline.keymap.KeyMap.key;
 import static org.jline.keymap.KeyMap.del;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 import java.util.stream.Collectors;
 
 import org.apache.commons.cli.Option;
@@ -33,9 +37,17 @@ public class DisplayLoop {
         keyMap.bind(Operation.BACKSPACE, key(terminal, Capability.key_backspace), del());
         keyMap.bind(Operation.NEWLINE, "\r");
         keyMap.bind(Operation.COMMAND, "r"); // reset command
+        keyMap.bind(Operation.COMMAND, "e"); // export command
+        keyMap.bind(Operation.COMMAND, "w"); // stacks window command
+        keyMap.bind(Operation.COMMAND, "g"); // history graph command
+        keyMap.bind(Operation.COMMAND, "x"); // stacks expand command
+        keyMap.bind(Operation.COMMAND, "b"); // stacks baseline command
+        keyMap.bind(Operation.COMMAND, "v"); // stacks invert command
+        keyMap.bind(Operation.COMMAND, "<", ">"); // replay seek commands
         keyMap.bind(Operation.COMMAND, Runner.options.getOptions()
             .stream()
             .map(Option::getOpt)
+            .filter(Objects::nonNull)
             .collect(Collectors.toList()));
         for (int i = 32; i < 127; i++) {
             keyMap.bindIfNotBound(Operation.CHAR, Character.toString((char)i));
@@ -43,66 +55,54 @@ public class DisplayLoop {
 
         terminal.writer().flush();
 
-        clearTerminal();
-        
+        ScreenBuffer screen = new ScreenBuffer(terminal.writer());
+        List<String> rows = new ArrayList<>();
+
         TerminalLineReader lineReader = new TerminalLineReader(keyMap, bindingReader);
         
         int y = 0;
         int x = 0;
+        Map<Printer, int[]> positions = new HashMap<>();
 
-        int yPrev = 0;
-        int xPrev = 0;
+        int lastWidth = -1;
 
         Printer lastPrinter = config.getActive();
         while (true) {
             Printer printer = config.getActive();
-            List<String> output = printer.getOutput();
 
-            // when switching modes, start at the top
+            // when switching modes, go back to where that mode was left
             if (lastPrinter != printer) {
+                positions.put(lastPrinter, new int[] { x, y });
                 lastPrinter = printer;
 
-                int swapX = x;
-                int swapY = y;
-
-                x = xPrev;
-                y = yPrev;
-
-                xPrev = swapX;
-                yPrev = swapY;
+                int[] position = positions.getOrDefault(printer, new int[2]);
+                x = position[0];
+                y = position[1];
             }
 
-            int from = y;
-
             int height = terminal.getHeight() - 2;
             int width = terminal.getWidth();
-            int to = -1;
-            if (from < output.size()) {
-                to = from + height;
-                if (to > output.size()) {
-                    to = output.size();
-                }
-
-                for (String line : output.subList(from, to)) {
-                    int lineLen = line.length() - x;
-                    if (lineLen < 0) {
-                        System.out.println();
-                        continue;
-                    }
-                    if (lineLen > width) {
-                        lineLen = width;
-                    }
-                    int lineEnd = x + lineLen;
-                    line = line.substring(x, lineEnd);
-
-                    System.out.println(line);
-                }
+            if (width != lastWidth) {
+                // the terminal may have rewrapped what was on the screen
+                lastWidth = width;
+                screen.invalidate();
             }
 
-            // position cursor at the bottom of the screen
-            System.out.print("\033[" + (height + 1) + ";0H" );
+            printer.setFirstRow(y);
+            rows.clear();
+            List<String> lines = printer.getLines(y, height);
+            for (int line = 0; line < height; line++) {
+                rows.add(line < lines.size() ? visible(lines.get(line), x, width) : "");
+            }
 
             String commands = printer.getCommandsString();
+            String status = config.getSampler().getStatus();
+            if (status != null) {
+                commands += " | " + status;
+            }
+            if (printer.getDropped() > 0) {
+                commands += " | " + printer.getDropped() + " samples dropped";
+            }
             if (commands.length() > width) {
                 if (x > 0) {
                     commands = commands.substring(x);
@@ -111,8 +111,8 @@ public class DisplayLoop {
                     commands = commands.substring(0, width);
                 }
             }
-            System.out.println(commands);
-            
+            screen.render(rows, commands);
+
             long interval = config.getInterval();
             long started = System.currentTimeMillis();
             boolean update = false;
@@ -152,6 +152,8 @@ public class DisplayLoop {
                             PrinterCommandHandler handler = printer.handlers.get((char)c);
                             if (handler != null) {
                                 handler.handle(lineReader);
+                                System.out.flush();
+                                screen.invalidate();
                                 update = true;
                             }
                             break;
@@ -160,16 +162,14 @@ public class DisplayLoop {
                     }
                 }
             }
-
-            clearTerminal();
         }
     }
 
-    protected static boolean clearTerminal() throws IOException {
-        System.out.print("\033[H"); // Move to the top left corner of the terminal
-        System.out.print("\033[J"); // Clear screen from cursor down
-        System.out.flush();
-        return false;
+    private static String visible(String line, int x, int width) {
+        if (line.length() <= x) {
+            return "";
+        }
+        return line.substring(x, Math.min(line.length(), x + width));
     }
 
     public enum Operation {
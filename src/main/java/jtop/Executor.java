@@ -2,8 +2,8 @@ package jtop;
 
 import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.util.ArrayList;
 import java.util.List;
 import java.util.function.Function;
 import java.util.stream.Collectors;
@@ -30,49 +30,23 @@ public class Executor {
         }
     }
 
-    public static List<ThreadInfo> sampleJvm(String pid) throws IOException {
+    /**
+     * @param synchronizers whether to run jstack -l, which also lists the
+     * java.util.concurrent locks each thread owns
+     */
+    public static List<ThreadInfo> sampleJvm(String pid, boolean synchronizers) throws IOException {
         String jstack = System.getProperty("jstack", "jstack");
 
-        List<ThreadInfo> threads = new ArrayList<>();
-        List<String> frames = new ArrayList<>();
-        String name = null;
-        double cpuTime = 0;
-        for (String line : execute(jstack, pid)) {
-            line = line.trim();
-            if (line.isEmpty()) {
-                continue;
-            }
-            if (line.charAt(0) == '"' && line.indexOf("tid=") > 0) {
-                frames = new ArrayList<>();
-                
-                int osPrio = line.lastIndexOf("os_prio=");
-                int nameEnd = line.lastIndexOf('"', osPrio);
-                name = line.substring(1, nameEnd);
-
-                int cpuIndex = line.indexOf("cpu=", osPrio);
-                if (cpuIndex > 0) {
-                    cpuIndex += 4;
-                    int end = line.indexOf("ms ", cpuIndex);
-                    cpuTime = Double.parseDouble(line.substring(cpuIndex, end));
-                }
-
-                int tidIndex = line.indexOf("tid=", nameEnd) + 4;
-                int tidEnd = line.indexOf(' ', tidIndex);
-                String id = line.substring(tidIndex, tidEnd);
-
-                threads.add(new ThreadInfo(id, name, cpuTime, frames));
-            } else if (line.startsWith("java.lang.Thread.State:")) {
-                continue;
-            } else if (line.startsWith("at ")) {
-                frames.add(line.substring(3));
-            } else if (line.startsWith("- ")) {
-                int refOpen = line.indexOf('<');
-                int refClose = line.indexOf('>', refOpen);
-                line = line.substring(0, refOpen + 1) + line.substring(refClose);
-                frames.add(line);
+        ProcessBuilder builder = synchronizers ? new ProcessBuilder(jstack, "-l", pid) : new ProcessBuilder(jstack, pid);
+        Process process = builder.start();
+        try {
+            process.getOutputStream().close();
+            try (InputStream in = process.getInputStream()) {
+                return StackDumpParser.parse(pid, in);
             }
+        } finally {
+            process.destroyForcibly();
         }
-        return threads;
     }
 
 }
\ No newline at end of file
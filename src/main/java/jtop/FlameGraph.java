@@ -0,0 +1,208 @@
+package jtop;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Locale;
+
+import jtop.StacksPrinter.Node;
+
+/**
+ * Writes a stacks trie as folded (collapsed) stacks or as a self-contained
+ * interactive flame graph. Both walk the trie depth first and write as they go,
+ * so nothing but the current path is held in memory: folded stacks don't need
+ * any order, and the flame graph only sorts the children of the node it is on.
+ */
+public class FlameGraph {
+
+    private static final int WIDTH = 1200;
+    private static final int FRAME_HEIGHT = 16;
+    private static final int PAD_TOP = 40;
+    private static final int PAD_BOTTOM = 24;
+    private static final double MIN_WIDTH = 0.1;
+
+    private FlameGraph() { }
+
+    /**
+     * Writes one "outer;...;inner count" line per distinct stack, where count is the
+     * number of samples that ended in that stack.
+     */
+    public static void writeFolded(Node root, Writer writer) throws IOException {
+        StringBuilder path = new StringBuilder();
+        for (Node child : root.getChildTable()) {
+            if (child != null && child.getCount() > 0) {
+                writeFolded(child, path, writer);
+            }
+        }
+    }
+
+    private static void writeFolded(Node node, StringBuilder path, Writer writer) throws IOException {
+        int length = path.length();
+        if (length > 0) {
+            path.append(';');
+        }
+        path.append(node.getFrame());
+
+        int self = node.getCount();
+        for (Node child : node.getChildTable()) {
+            if (child != null && child.getCount() > 0) {
+                self -= child.getCount();
+                writeFolded(child, path, writer);
+            }
+        }
+        if (self > 0) {
+            writer.write(path.toString());
+            writer.write(' ');
+            writer.write(Integer.toString(self));
+            writer.write('\n');
+        }
+        path.setLength(length);
+    }
+
+    public static void writeHtml(Node root, Writer writer) throws IOException {
+        writer.write("<!DOCTYPE html>\n<html><head><meta charset=\"utf-8\"><title>jtop flame graph</title></head>\n<body style=\"margin:0\">\n");
+        writeSvg(root, writer);
+        writer.write("</body></html>\n");
+    }
+
+    /**
+     * Writes an icicle-style flame graph (callers on top). Clicking a frame zooms
+     * into it, clicking the root resets the zoom. Frames narrower than
+     * MIN_WIDTH pixels are left out, along with their children. Without samples
+     * the graph only says so.
+     */
+    public static void writeSvg(Node root, Writer writer) throws IOException {
+        double samples = root.getCount();
+        int depth = samples > 0 ? depth(root, samples, WIDTH) : 0;
+        int height = PAD_TOP + (depth + 1) * FRAME_HEIGHT + PAD_BOTTOM;
+
+        writer.write("<svg xmlns=\"http://www.w3.org/2000/svg\" width=\"" + WIDTH + "\" height=\"" + height
+            + "\" viewBox=\"0 0 " + WIDTH + " " + height + "\" font-family=\"monospace\" font-size=\"12\" onload=\"init(evt)\">\n");
+        writer.write("<style>.f:hover rect { stroke:black; stroke-width:0.5; cursor:pointer } text { pointer-events:none }</style>\n");
+        writer.write(SCRIPT);
+        writer.write("<rect width=\"100%\" height=\"100%\" fill=\"#f8f8f8\"/>\n");
+        writer.write("<text x=\"" + (WIDTH / 2) + "\" y=\"24\" text-anchor=\"middle\" font-size=\"16\">jtop flame graph</text>\n");
+        writer.write("<text id=\"details\" x=\"10\" y=\"" + (height - 8) + "\"> </text>\n");
+        writer.write("<g id=\"frames\">\n");
+        if (samples > 0) {
+            writeFrame(root, 0, 0, samples, writer);
+        }
+        writer.write("</g>\n");
+        if (samples == 0) {
+            writer.write("<text x=\"" + (WIDTH / 2) + "\" y=\"" + (PAD_TOP + FRAME_HEIGHT - 4) + "\" text-anchor=\"middle\">No samples</text>\n");
+        }
+        writer.write("</svg>\n");
+    }
+
+    private static int depth(Node node, double samples, double width) {
+        int depth = 0;
+        for (Node child : node.getChildTable()) {
+            if (child != null && child.getCount() / samples * width >= MIN_WIDTH) {
+                depth = Math.max(depth, depth(child, samples, width) + 1);
+            }
+        }
+        return depth;
+    }
+
+    private static void writeFrame(Node node, double x, int depth, double samples, Writer writer) throws IOException {
+        double fraction = node.getCount() / samples;
+        double width = fraction * WIDTH;
+        double left = x * WIDTH;
+        int y = PAD_TOP + depth * FRAME_HEIGHT;
+        String frame = node.getFrame();
+
+        writer.write("<g class=\"f\" data-x=\"");
+        writer.write(number(x));
+        writer.write("\" data-w=\"");
+        writer.write(number(fraction));
+        writer.write("\"><title>");
+        escape(frame, writer);
+        writer.write(" (" + node.getCount() + " samples, " + String.format(Locale.ROOT, "%.2f", fraction * 100) + "%)</title>");
+        writer.write("<rect x=\"" + number(left) + "\" y=\"" + y + "\" width=\"" + number(width)
+            + "\" height=\"" + (FRAME_HEIGHT - 1) + "\" fill=\"" + color(frame) + "\" rx=\"2\"/>");
+        writer.write("<text x=\"" + number(left + 3) + "\" y=\"" + (y + FRAME_HEIGHT - 4) + "\">");
+        escape(label(frame, width), writer);
+        writer.write("</text></g>\n");
+
+        for (Node child : node.getChildren()) {
+            if (child.getCount() / samples * WIDTH >= MIN_WIDTH) {
+                writeFrame(child, x, depth + 1, samples, writer);
+            }
+            x += child.getCount() / samples;
+        }
+    }
+
+    private static String label(String frame, double width) {
+        int chars = (int)((width - 6) / 7);
+        if (chars < 3) {
+            return "";
+        } else if (frame.length() <= chars) {
+            return frame;
+        }
+        return frame.substring(0, chars - 2) + "..";
+    }
+
+    private static String color(String frame) {
+        int hash = frame.hashCode();
+        int r = 205 + ((hash & 0xFF) % 50);
+        int g = 80 + (((hash >>> 8) & 0xFF) % 150);
+        int b = ((hash >>> 16) & 0xFF) % 55;
+        return "rgb(" + r + "," + g + "," + b + ")";
+    }
+
+    private static String number(double value) {
+        return String.format(Locale.ROOT, "%.4f", value);
+    }
+
+    private static void escape(String str, Writer writer) throws IOException {
+        for (int i = 0; i < str.length(); i++) {
+            char c = str.charAt(i);
+            switch (c) {
+                case '&':
+                    writer.write("&amp;");
+                    break;
+                case '<':
+                    writer.write("&lt;");
+                    break;
+                case '>':
+                    writer.write("&gt;");
+                    break;
+                case '"':
+                    writer.write("&quot;");
+                    break;
+                default:
+                    writer.write(c);
+            }
+        }
+    }
+
+    private static final String SCRIPT = "<script type=\"text/ecmascript\"><![CDATA[\n"
+        + "var frames, details, width = " + WIDTH + ";\n"
+        + "function init(evt) {\n"
+        + "  frames = document.getElementById('frames').children;\n"
+        + "  details = document.getElementById('details').firstChild;\n"
+        + "  for (var i = 0; i < frames.length; i++) {\n"
+        + "    frames[i].onclick = zoom;\n"
+        + "    frames[i].onmouseover = function() { details.nodeValue = this.firstChild.textContent; };\n"
+        + "    frames[i].onmouseout = function() { details.nodeValue = ' '; };\n"
+        + "  }\n"
+        + "}\n"
+        + "function zoom() {\n"
+        + "  var zx = parseFloat(this.getAttribute('data-x')), zw = parseFloat(this.getAttribute('data-w'));\n"
+        + "  var zy = parseFloat(this.children[1].getAttribute('y'));\n"
+        + "  for (var i = 0; i < frames.length; i++) {\n"
+        + "    var f = frames[i], x = parseFloat(f.getAttribute('data-x')), w = parseFloat(f.getAttribute('data-w'));\n"
+        + "    var rect = f.children[1], text = f.children[2], y = parseFloat(rect.getAttribute('y'));\n"
+        + "    var visible = x >= zx - 1e-9 && x + w <= zx + zw + 1e-9 || (y < zy && x <= zx + 1e-9 && x + w >= zx + zw - 1e-9);\n"
+        + "    f.style.display = visible ? '' : 'none';\n"
+        + "    if (!visible) continue;\n"
+        + "    var left = y < zy ? 0 : (x - zx) / zw * width, fw = y < zy ? width : w / zw * width;\n"
+        + "    rect.setAttribute('x', left);\n"
+        + "    rect.setAttribute('width', fw);\n"
+        + "    text.setAttribute('x', left + 3);\n"
+        + "    var name = f.firstChild.textContent.replace(/ \\([0-9]+ samples, [0-9.]+%\\)$/, '');\n"
+        + "    var chars = Math.floor((fw - 6) / 7);\n"
+        + "    text.textContent = chars < 3 ? '' : name.length <= chars ? name : name.substring(0, chars - 2) + '..';\n"
+        + "  }\n"
+        + "}\n"
+        + "]]></script>\n";
+}
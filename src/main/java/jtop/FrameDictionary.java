@@ -0,0 +1,145 @@
+package jtop;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Global dictionary assigning every distinct stack frame (and lock line) a
+ * small int id, so stacks can be stored and compared as int arrays and the
+ * frame strings only need to be looked up when rendering.
+ *
+ * Lookups of frames that are already known don't lock and don't allocate;
+ * only adding a new frame synchronizes. A lookup may race with the insert of the
+ * frame it finds: the entry itself is safe to read through its final fields, but
+ * the id may not be in byId yet as this thread sees it, so get falls back to the
+ * lock then.
+ */
+public final class FrameDictionary {
+
+    private static final Object lock = new Object();
+    private static volatile Entry[] table = new Entry[1024];
+    private static volatile Entry[] byId = new Entry[512];
+    private static volatile int size;
+
+    private FrameDictionary() { }
+
+    public static int intern(String frame) {
+        byte[] bytes = frame.getBytes(StandardCharsets.UTF_8);
+        return intern(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Interns the UTF-8 frame in b[offset, offset + length). The bytes are copied
+     * (and decoded) only if the frame hasn't been seen before.
+     */
+    public static int intern(byte[] b, int offset, int length) {
+        int hash = hash(b, offset, length);
+        int id = find(table, b, offset, length, hash);
+        if (id >= 0) {
+            return id;
+        }
+        synchronized (lock) {
+            Entry[] table = FrameDictionary.table;
+            id = find(table, b, offset, length, hash);
+            if (id >= 0) {
+                return id;
+            }
+
+            id = size;
+            Entry entry = new Entry(id, hash, Arrays.copyOfRange(b, offset, offset + length));
+            if (id == byId.length) {
+                byId = Arrays.copyOf(byId, id * 2);
+            }
+            byId[id] = entry;
+
+            if ((id + 1) * 2 > table.length) {
+                table = rehash(table, table.length * 2);
+            }
+            insert(table, entry);
+            FrameDictionary.table = table;
+            size = id + 1;
+            return id;
+        }
+    }
+
+    public static String get(int id) {
+        Entry[] byId = FrameDictionary.byId;
+        Entry entry = id < byId.length ? byId[id] : null;
+        if (entry == null) {
+            synchronized (lock) {
+                entry = FrameDictionary.byId[id];
+            }
+        }
+        return entry.frame;
+    }
+
+    public static int size() {
+        return size;
+    }
+
+    private static int find(Entry[] table, byte[] b, int offset, int length, int hash) {
+        int mask = table.length - 1;
+        for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+            Entry entry = table[slot];
+            if (entry == null) {
+                return -1;
+            }
+            if (entry.hash == hash && entry.matches(b, offset, length)) {
+                return entry.id;
+            }
+        }
+    }
+
+    private static void insert(Entry[] table, Entry entry) {
+        int mask = table.length - 1;
+        int slot = entry.hash & mask;
+        while (table[slot] != null) {
+            slot = (slot + 1) & mask;
+        }
+        table[slot] = entry;
+    }
+
+    private static Entry[] rehash(Entry[] table, int capacity) {
+        Entry[] rehashed = new Entry[capacity];
+        for (Entry entry : table) {
+            if (entry != null) {
+                insert(rehashed, entry);
+            }
+        }
+        return rehashed;
+    }
+
+    private static int hash(byte[] b, int offset, int length) {
+        int hash = 0x811C9DC5;
+        for (int i = offset; i < offset + length; i++) {
+            hash = (hash ^ b[i]) * 0x01000193;
+        }
+        return hash ^ (hash >>> 16);
+    }
+
+    private static class Entry {
+        private final int id;
+        private final int hash;
+        private final byte[] bytes;
+        private final String frame;
+
+        private Entry(int id, int hash, byte[] bytes) {
+            this.id = id;
+            this.hash = hash;
+            this.bytes = bytes;
+            this.frame = new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        private boolean matches(byte[] b, int offset, int length) {
+            if (bytes.length != length) {
+                return false;
+            }
+            for (int i = 0; i < length; i++) {
+                if (bytes[i] != b[offset + i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
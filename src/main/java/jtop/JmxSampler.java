@@ -0,0 +1,356 @@
+package jtop;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.management.LockInfo;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MonitorInfo;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.management.remote.JMXConnector;
+import javax.management.remote.JMXConnectorFactory;
+import javax.management.remote.JMXServiceURL;
+
+import com.sun.management.ThreadMXBean;
+
+/**
+ * Attaches to the target JVM once, starts its local management agent and keeps
+ * a JMX connection open for the lifetime of the sampler. Each sample is a
+ * single dumpAllThreads call plus one bulk cpu time and one bulk allocated bytes
+ * lookup, so no process is forked and no text dump is parsed.
+ * <p>
+ * A cpu sample is taken in two steps: the cpu time of every thread, which
+ * doesn't stop the JVM at a safepoint, then the stacks of only the threads that
+ * used the most cpu since the last cpu sample. The names of the other threads
+ * are looked up once and their state is left unknown, so the cost grows with
+ * the number of threads shown rather than the number of threads.
+ */
+public class JmxSampler implements Sampler {
+
+    private static final int[] NO_FRAMES = new int[0];
+
+    private final String pid;
+    private final Config config;
+    private final JMXConnector connector;
+    private final ThreadMXBean threads;
+    private final LongMap<Double> lastCpu = new LongMap<>();
+    private final boolean allocationSupported;
+    private final boolean synchronizersSupported;
+    private LongMap<String> names = new LongMap<>();
+
+    public JmxSampler(String pid, Config config) throws IOException {
+        this.pid = pid;
+        this.config = config;
+        connector = JMXConnectorFactory.connect(new JMXServiceURL(startManagementAgent(pid)));
+        threads = ManagementFactory.newPlatformMXBeanProxy(
+            connector.getMBeanServerConnection(),
+            ManagementFactory.THREAD_MXBEAN_NAME,
+            ThreadMXBean.class);
+        if (threads.isThreadCpuTimeSupported() && !threads.isThreadCpuTimeEnabled()) {
+            threads.setThreadCpuTimeEnabled(true);
+        }
+        synchronizersSupported = threads.isSynchronizerUsageSupported();
+        allocationSupported = threads.isThreadAllocatedMemorySupported();
+        if (allocationSupported && !threads.isThreadAllocatedMemoryEnabled()) {
+            threads.setThreadAllocatedMemoryEnabled(true);
+        }
+    }
+
+    /**
+     * Attaches to the JVM and starts its local management agent, going through
+     * the Attach API reflectively: on JDK 8 it is in lib/tools.jar, which isn't
+     * on the class path of java -jar, and from JDK 9 on in the jdk.attach module.
+     * @return the JMX address of the agent
+     */
+    private static String startManagementAgent(String pid) throws IOException {
+        try {
+            Class<?> vmClass = attachClass();
+            Object vm;
+            try {
+                vm = vmClass.getMethod("attach", String.class).invoke(null, pid);
+            } catch (InvocationTargetException ex) {
+                throw new IOException("Unable to attach to JVM " + pid + ": " + ex.getCause().getMessage(), ex.getCause());
+            }
+            Method detach = vmClass.getMethod("detach");
+            try {
+                return (String)vmClass.getMethod("startLocalManagementAgent").invoke(vm);
+            } finally {
+                detach.invoke(vm);
+            }
+        } catch (InvocationTargetException ex) {
+            if (ex.getCause() instanceof IOException) {
+                throw (IOException)ex.getCause();
+            }
+            throw new IOException("Unable to start the management agent of JVM " + pid, ex.getCause());
+        } catch (ReflectiveOperationException ex) {
+            throw new IOException("Unable to use the Attach API: " + ex, ex);
+        }
+    }
+
+    private static Class<?> attachClass() throws IOException, ClassNotFoundException {
+        try {
+            return Class.forName("com.sun.tools.attach.VirtualMachine");
+        } catch (ClassNotFoundException ex) {
+            File toolsJar = new File(System.getProperty("java.home"), "../lib/tools.jar");
+            if (!toolsJar.isFile()) {
+                throw new IOException("The Attach API is missing, -m jmx needs jtop to run on a JDK rather than a JRE", ex);
+            }
+            ClassLoader loader = new URLClassLoader(new URL[] { toolsJar.toURI().toURL() }, JmxSampler.class.getClassLoader());
+            return Class.forName("com.sun.tools.attach.VirtualMachine", true, loader);
+        }
+    }
+
+    @Override
+    public List<ThreadInfo> sample() throws IOException {
+        java.lang.management.ThreadInfo[] dump = threads.dumpAllThreads(true, synchronizersSupported && config.needsSynchronizers());
+
+        long[] ids = new long[dump.length];
+        for (int i = 0; i < dump.length; i++) {
+            ids[i] = dump[i].getThreadId();
+        }
+        long[] cpuTimes = threads.getThreadCpuTime(ids);
+        long[] allocated = allocatedBytes(ids);
+
+        List<ThreadInfo> result = new ArrayList<>(dump.length);
+        StringBuilder builder = new StringBuilder();
+        List<ThreadLock> locks = new ArrayList<>();
+        for (int i = 0; i < dump.length; i++) {
+            java.lang.management.ThreadInfo info = dump[i];
+            double cpuTime = cpuTimes[i] < 0 ? 0 : cpuTimes[i] / 1000000.0;
+            locks.clear();
+            int[] frames = frames(info, builder, locks);
+            result.add(new ThreadInfo(
+                pid,
+                Long.toString(info.getThreadId()),
+                -1,
+                info.getThreadName(),
+                info.getThreadState(),
+                cpuTime,
+                frames,
+                locks.isEmpty() ? ThreadLock.NONE : locks.toArray(new ThreadLock[locks.size()]),
+                allocated[i]));
+        }
+        return result;
+    }
+
+    @Override
+    public boolean cpuSamplesHaveStacks() {
+        return false;
+    }
+
+    /**
+     * Captures stacks only for as many threads as the top view shows.
+     */
+    @Override
+    public List<ThreadInfo> sampleCpu() throws IOException {
+        long[] ids = threads.getAllThreadIds();
+        long[] cpuTimes = threads.getThreadCpuTime(ids);
+        long[] allocated = allocatedBytes(ids);
+
+        int[] hot = hottest(ids, cpuTimes, Math.min(config.getTopLimit(), ids.length));
+        long[] hotIds = new long[hot.length];
+        for (int i = 0; i < hot.length; i++) {
+            hotIds[i] = ids[hot[i]];
+        }
+        java.lang.management.ThreadInfo[] stacks = threads.getThreadInfo(hotIds, true, false);
+        java.lang.management.ThreadInfo[] infos = new java.lang.management.ThreadInfo[ids.length];
+        for (int i = 0; i < hot.length; i++) {
+            infos[hot[i]] = stacks[i];
+        }
+        lookupNames(ids, infos);
+
+        LongMap<String> seen = new LongMap<>();
+        lastCpu.clear();
+        List<ThreadInfo> result = new ArrayList<>(ids.length);
+        StringBuilder builder = new StringBuilder();
+        List<ThreadLock> locks = new ArrayList<>();
+        for (int i = 0; i < ids.length; i++) {
+            double cpuTime = cpuTimes[i] < 0 ? 0 : cpuTimes[i] / 1000000.0;
+            java.lang.management.ThreadInfo info = infos[i];
+            String name = info != null ? info.getThreadName() : names.get(ids[i]);
+            if (name == null) {
+                // ended since the ids were read
+                continue;
+            }
+            seen.put(ids[i], name);
+            lastCpu.put(ids[i], cpuTime);
+
+            locks.clear();
+            int[] frames = info == null ? NO_FRAMES : frames(info, builder, locks);
+            result.add(new ThreadInfo(
+                pid,
+                Long.toString(ids[i]),
+                -1,
+                name,
+                info == null ? null : info.getThreadState(),
+                cpuTime,
+                frames,
+                locks.isEmpty() ? ThreadLock.NONE : locks.toArray(new ThreadLock[locks.size()]),
+                allocated[i]));
+        }
+        // forget the names of threads that ended
+        names = seen;
+        return result;
+    }
+
+    /**
+     * @return the bytes allocated by each thread, in one bulk call, or all -1 when
+     * the JVM doesn't measure it
+     */
+    private long[] allocatedBytes(long[] ids) {
+        if (!allocationSupported) {
+            long[] unknown = new long[ids.length];
+            Arrays.fill(unknown, -1);
+            return unknown;
+        }
+        return threads.getThreadAllocatedBytes(ids);
+    }
+
+    /**
+     * Looks up the names of threads seen for the first time, without their stacks
+     * so that it doesn't need a safepoint either.
+     */
+    private void lookupNames(long[] ids, java.lang.management.ThreadInfo[] infos) {
+        long[] unknown = new long[ids.length];
+        int count = 0;
+        for (int i = 0; i < ids.length; i++) {
+            if (infos[i] == null && names.get(ids[i]) == null) {
+                unknown[count++] = ids[i];
+            }
+        }
+        if (count == 0) {
+            return;
+        }
+        for (java.lang.management.ThreadInfo info : threads.getThreadInfo(Arrays.copyOf(unknown, count), 0)) {
+            if (info != null) {
+                names.put(info.getThreadId(), info.getThreadName());
+            }
+        }
+    }
+
+    /**
+     * @return the indexes of the count threads that used the most cpu since the last
+     * cpu sample, where new threads count with all of their cpu time
+     */
+    private int[] hottest(long[] ids, long[] cpuTimes, int count) {
+        int[] hot = new int[count];
+        double[] hotDeltas = new double[count];
+        int size = 0;
+        for (int i = 0; i < ids.length; i++) {
+            double cpuTime = cpuTimes[i] < 0 ? 0 : cpuTimes[i] / 1000000.0;
+            Double last = lastCpu.get(ids[i]);
+            double delta = last == null ? cpuTime : cpuTime - last;
+
+            // insertion into the small sorted array of the hottest so far
+            int pos = size;
+            while (pos > 0 && hotDeltas[pos - 1] < delta) {
+                pos--;
+            }
+            if (pos == count) {
+                continue;
+            }
+            int moved = Math.min(size, count - 1) - pos;
+            System.arraycopy(hot, pos, hot, pos + 1, moved);
+            System.arraycopy(hotDeltas, pos, hotDeltas, pos + 1, moved);
+            hot[pos] = i;
+            hotDeltas[pos] = delta;
+            size = Math.min(size + 1, count);
+        }
+        return Arrays.copyOf(hot, size);
+    }
+
+    /**
+     * Renders the stack the same way {@link StackDumpParser} reads it from jstack,
+     * including the lock lines (with the monitor address removed). The locks go in
+     * locks, with identity hash codes standing in for the addresses, followed by
+     * the java.util.concurrent locks the thread owns if the dump has them.
+     */
+    private static int[] frames(java.lang.management.ThreadInfo info, StringBuilder builder, List<ThreadLock> locks) {
+        StackTraceElement[] stack = info.getStackTrace();
+        MonitorInfo[] monitors = info.getLockedMonitors();
+        int[] frames = new int[stack.length + monitors.length + 1];
+        int count = 0;
+        for (int depth = 0; depth < stack.length; depth++) {
+            frames[count++] = FrameDictionary.intern(frame(builder, stack[depth]));
+
+            int frame = frames[count - 1];
+
+            if (depth == 0 && info.getLockInfo() != null) {
+                String action;
+                ThreadLock.Kind kind;
+                if (info.getThreadState() == Thread.State.BLOCKED) {
+                    action = "waiting to lock";
+                    kind = ThreadLock.Kind.WAITING_TO_LOCK;
+                } else if ("park".equals(stack[0].getMethodName())) {
+                    action = "parking to wait for";
+                    kind = ThreadLock.Kind.PARKING;
+                } else {
+                    action = "waiting on";
+                    kind = ThreadLock.Kind.WAITING_ON;
+                }
+                frames[count++] = FrameDictionary.intern(lockLine(builder, action, info.getLockInfo()));
+                locks.add(lock(kind, info.getLockInfo(), frame));
+            }
+            for (MonitorInfo monitor : monitors) {
+                if (monitor.getLockedStackDepth() == depth) {
+                    frames[count++] = FrameDictionary.intern(lockLine(builder, "locked", monitor));
+                    locks.add(lock(ThreadLock.Kind.LOCKED, monitor, frame));
+                }
+            }
+        }
+        for (LockInfo synchronizer : info.getLockedSynchronizers()) {
+            locks.add(lock(ThreadLock.Kind.LOCKED, synchronizer, -1));
+        }
+        return Arrays.copyOf(frames, count);
+    }
+
+    /**
+     * Formats a frame like jstack does, without the class loader and module prefix
+     * that {@link StackTraceElement#toString()} adds on newer JVMs.
+     */
+    private static String frame(StringBuilder builder, StackTraceElement element) {
+        builder.setLength(0);
+        builder.append(element.getClassName());
+        builder.append('.');
+        builder.append(element.getMethodName());
+        builder.append('(');
+        if (element.isNativeMethod()) {
+            builder.append("Native Method");
+        } else if (element.getFileName() == null) {
+            builder.append("Unknown Source");
+        } else {
+            builder.append(element.getFileName());
+            if (element.getLineNumber() >= 0) {
+                builder.append(':');
+                builder.append(element.getLineNumber());
+            }
+        }
+        builder.append(')');
+        return builder.toString();
+    }
+
+    private static ThreadLock lock(ThreadLock.Kind kind, LockInfo lock, int frame) {
+        return new ThreadLock(kind, lock.getIdentityHashCode(), FrameDictionary.intern(lock.getClassName()), frame);
+    }
+
+    private static String lockLine(StringBuilder builder, String action, LockInfo lock) {
+        builder.setLength(0);
+        builder.append("- ");
+        builder.append(action);
+        builder.append(" <> (a ");
+        builder.append(lock.getClassName());
+        builder.append(')');
+        return builder.toString();
+    }
+
+    @Override
+    public void close() throws IOException {
+        connector.close();
+    }
+}
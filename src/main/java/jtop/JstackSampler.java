@@ -0,0 +1,23 @@
+package jtop;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Forks a jstack process for every sample.
+ */
+public class JstackSampler implements Sampler {
+
+    private final String pid;
+    private final Config config;
+
+    public JstackSampler(String pid, Config config) {
+        this.pid = pid;
+        this.config = config;
+    }
+
+    @Override
+    public List<ThreadInfo> sample() throws IOException {
+        return Executor.sampleJvm(pid, config.needsSynchronizers());
+    }
+}
@@ -0,0 +1,256 @@
+package jtop;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Shows the contended locks: which thread owns each one, where, and who is waiting
+ * for it in the latest sample, followed by the locks with the most waiting
+ * threads since the start (or the last reset) and the frames that held them.
+ * Only the MAX_LOCKS most waited for locks are kept: lock addresses change when
+ * the GC moves the lock, so the same lock may turn up again and again.
+ */
+public class LocksPrinter extends Printer {
+
+    private static final int HOLDER_FRAMES = 5;
+    private static final int MAX_LOCKS = 1000;
+
+    private final Map<String, LockStat> stats = new HashMap<>();
+    private long started = System.currentTimeMillis();
+    private int samples;
+
+    public LocksPrinter(Config config) throws IOException {
+        super(config);
+    }
+
+    @Override
+    protected Map<Character, PrinterCommandHandler> createHandlers() {
+        Map<Character, PrinterCommandHandler> handlers = super.createHandlers();
+        handlers.put('r', this::resetStats);
+        return handlers;
+    }
+
+    private synchronized void resetStats(TerminalLineReader reader) {
+        stats.clear();
+        samples = 0;
+        started = System.currentTimeMillis();
+        System.out.println("\rLock stats successfully reset.");
+    }
+
+    @Override
+    public boolean needsSynchronizers() {
+        return true;
+    }
+
+    @Override
+    protected String getCommandsString() {
+        String commands = "Cmds: (i)nterval | (r)eset | (n)ame filter:";
+        commands += config.hasNameRegex() ? "+" : "-";
+        commands += " | (f)rame filter:";
+        commands += config.hasFrameFilter() ? "+" : "-";
+        commands += " | (s)wap mode : ";
+        return commands;
+    }
+
+    @Override
+    protected void runLoop() throws IOException, InterruptedException {
+        SamplePipeline.Sample sample = nextSample();
+        if (sample.isFull()) {
+            synchronized (this) {
+                this.output = render(addSample(sample.getThreads()));
+            }
+        }
+    }
+
+    /**
+     * Builds the owner to waiters graph of the sample and adds its contended locks
+     * to the stats.
+     * @return the contended locks of the sample, most waiters first
+     */
+    synchronized List<Monitor> addSample(List<ThreadInfo> threads) {
+        Map<String, Monitor> monitors = new HashMap<>();
+        for (ThreadInfo thread : threads) {
+            if (!config.keepThread(thread)) {
+                continue;
+            }
+            for (ThreadLock lock : thread.getLocks()) {
+                if (lock.isContended()) {
+                    monitor(monitors, thread, lock).waiters.add(thread);
+                } else if (lock.getKind() == ThreadLock.Kind.LOCKED && !waitsOn(thread, lock.getAddress())) {
+                    Monitor monitor = monitor(monitors, thread, lock);
+                    monitor.owner = thread;
+                    monitor.ownerFrame = lock.getFrame();
+                }
+            }
+        }
+
+        samples++;
+        List<Monitor> contended = new ArrayList<>();
+        for (Map.Entry<String, Monitor> entry : monitors.entrySet()) {
+            Monitor monitor = entry.getValue();
+            if (monitor.waiters.isEmpty()) {
+                continue;
+            }
+            contended.add(monitor);
+
+            LockStat stat = stats.get(entry.getKey());
+            if (stat == null) {
+                stat = new LockStat(monitor.description);
+                stats.put(entry.getKey(), stat);
+            }
+            stat.add(monitor, samples);
+        }
+        trimStats();
+        contended.sort((a, b) -> b.waiters.size() - a.waiters.size());
+        return contended;
+    }
+
+    /**
+     * Once there are more than MAX_LOCKS locks, forgets the least waited for ones
+     * not contended in the latest sample, down to half of MAX_LOCKS.
+     */
+    private void trimStats() {
+        if (stats.size() <= MAX_LOCKS) {
+            return;
+        }
+        List<Map.Entry<String, LockStat>> entries = new ArrayList<>(stats.entrySet());
+        entries.sort((a, b) -> Long.compare(a.getValue().waiting, b.getValue().waiting));
+        for (int i = 0; i < entries.size() && stats.size() > MAX_LOCKS / 2; i++) {
+            if (entries.get(i).getValue().lastSample != samples) {
+                stats.remove(entries.get(i).getKey());
+            }
+        }
+    }
+
+    int getLockCount() {
+        return stats.size();
+    }
+
+    /**
+     * A thread in Object.wait() still shows the monitor as locked by its synchronized
+     * block, although it let go of it while waiting.
+     */
+    private static boolean waitsOn(ThreadInfo thread, long address) {
+        for (ThreadLock lock : thread.getLocks()) {
+            if (lock.getKind() == ThreadLock.Kind.WAITING_ON && lock.getAddress() == address) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private Monitor monitor(Map<String, Monitor> monitors, ThreadInfo thread, ThreadLock lock) {
+        String key = thread.getPid() + ':' + lock.getAddress();
+        Monitor monitor = monitors.get(key);
+        if (monitor == null) {
+            monitor = new Monitor(describe(thread, lock));
+            monitors.put(key, monitor);
+        }
+        return monitor;
+    }
+
+    private String describe(ThreadInfo thread, ThreadLock lock) {
+        StringBuilder builder = new StringBuilder();
+        builder.append(String.format("<0x%016x>", lock.getAddress()));
+        if (lock.getClassName() >= 0) {
+            builder.append(" (a ").append(FrameDictionary.get(lock.getClassName())).append(')');
+        }
+        if (config.isMultiJvm()) {
+            builder.append(" - PID: ").append(thread.getPid());
+        }
+        return builder.toString();
+    }
+
+    synchronized List<String> render(List<Monitor> contended) {
+        List<String> output = new ArrayList<>();
+        output.add("CONTENDED LOCKS NOW - PID: " + config.getPid());
+        if (contended.isEmpty()) {
+            output.add("<no contended locks>");
+        }
+        StringBuilder builder = new StringBuilder();
+        for (Monitor monitor : contended) {
+            output.add(monitor.waiters.size() + " waiting for " + monitor.description
+                + (monitor.owner == null ? ", owner unknown" : " held by " + monitor.owner.getName()));
+            if (monitor.ownerFrame >= 0) {
+                output.add("|  at " + FrameDictionary.get(monitor.ownerFrame));
+            }
+            builder.setLength(0);
+            builder.append("|  waiting: ");
+            for (int i = 0; i < monitor.waiters.size(); i++) {
+                if (i > 0) {
+                    builder.append(", ");
+                }
+                builder.append(monitor.waiters.get(i).getName());
+            }
+            output.add(builder.toString());
+        }
+
+        output.add("");
+        output.add("MOST CONTENDED IN " + samples + " SAMPLES SINCE " + new Date(started));
+        output.add("WAITING  MAX    SAMPLES  LOCK");
+        List<LockStat> sorted = new ArrayList<>(stats.values());
+        sorted.sort((a, b) -> Long.compare(b.waiting, a.waiting));
+        for (int i = 0; i < sorted.size() && i < config.getTopLimit(); i++) {
+            LockStat stat = sorted.get(i);
+            builder.setLength(0);
+            pad(builder, Long.toString(stat.waiting), 9);
+            pad(builder, Integer.toString(stat.maxWaiters), 7);
+            pad(builder, Integer.toString(stat.samples), 9);
+            builder.append(stat.description);
+            output.add(builder.toString());
+
+            List<Map.Entry<Integer, Integer>> holders = new ArrayList<>(stat.holders.entrySet());
+            holders.sort((a, b) -> b.getValue() - a.getValue());
+            for (int h = 0; h < holders.size() && h < HOLDER_FRAMES; h++) {
+                output.add("|  held at " + FrameDictionary.get(holders.get(h).getKey()) + " - " + holders.get(h).getValue());
+            }
+        }
+        return output;
+    }
+
+    private static void pad(StringBuilder builder, String str, int to) {
+        builder.append(str);
+        for (int i = str.length(); i < to; i++) {
+            builder.append(' ');
+        }
+    }
+
+    static class Monitor {
+        private final String description;
+        private final List<ThreadInfo> waiters = new ArrayList<>();
+        private ThreadInfo owner;
+        private int ownerFrame = -1;
+
+        private Monitor(String description) {
+            this.description = description;
+        }
+    }
+
+    private static class LockStat {
+        private final String description;
+        private final Map<Integer, Integer> holders = new HashMap<>();
+        private long waiting;
+        private int maxWaiters;
+        private int samples;
+        private int lastSample;
+
+        private LockStat(String description) {
+            this.description = description;
+        }
+
+        private void add(Monitor monitor, int sample) {
+            lastSample = sample;
+            int waiters = monitor.waiters.size();
+            waiting += waiters;
+            maxWaiters = Math.max(maxWaiters, waiters);
+            samples++;
+            if (monitor.ownerFrame >= 0) {
+                holders.merge(monitor.ownerFrame, 1, Integer::sum);
+            }
+        }
+    }
+}
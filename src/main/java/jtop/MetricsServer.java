@@ -0,0 +1,250 @@
+package jtop;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import jtop.TopPrinter.Stat;
+
+/**
+ * Serves the latest sample on the loopback address, at /metrics in the Prometheus
+ * text format and at /json. The sampling loop publishes an immutable snapshot
+ * after every sample and scrapes render whichever snapshot is current, so a
+ * scrape never waits for or holds up a sample.
+ */
+public class MetricsServer implements Closeable {
+
+    private static final String[] AVERAGE_LABELS = new String[] { "1m", "5m", "15m" };
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private volatile Snapshot snapshot;
+
+    public MetricsServer(int port) throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        executor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "jtop-http");
+            thread.setDaemon(true);
+            return thread;
+        });
+        server.setExecutor(executor);
+        server.createContext("/metrics", exchange -> respond(exchange, "text/plain; version=0.0.4; charset=utf-8", false));
+        server.createContext("/json", exchange -> respond(exchange, "application/json", true));
+        server.start();
+    }
+
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    public void publish(Snapshot snapshot) {
+        this.snapshot = snapshot;
+    }
+
+    private void respond(HttpExchange exchange, String contentType, boolean json) throws IOException {
+        try {
+            Snapshot snapshot = this.snapshot;
+            if (!exchange.getRequestMethod().equals("GET") && !exchange.getRequestMethod().equals("HEAD")) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            } else if (snapshot == null) {
+                exchange.sendResponseHeaders(503, -1);
+                return;
+            }
+
+            byte[] body = (json ? snapshot.json() : snapshot.prometheus()).getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", contentType);
+            if (exchange.getRequestMethod().equals("HEAD")) {
+                exchange.sendResponseHeaders(200, -1);
+                return;
+            }
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    /**
+     * The top threads and hottest frames of one sample, never changed once published.
+     */
+    public static class Snapshot {
+        private final long time;
+        private final String pid;
+        private final List<Stat> threads;
+        private final int samples;
+        private final Map<String, Integer> frames;
+        private final boolean cumulative;
+
+        /**
+         * @param frames the innermost frames of the stacks counted so far with their
+         * sample counts, as returned by {@link StacksPrinter#hotFrames(int)}
+         * @param cumulative whether the stacks view counts every sample, so samples and
+         * the frame counts only ever grow, rather than only those in its window
+         */
+        public Snapshot(long time, String pid, List<Stat> threads, int samples, Map<String, Integer> frames, boolean cumulative) {
+            this.time = time;
+            this.pid = pid;
+            this.threads = threads;
+            this.samples = samples;
+            this.frames = frames;
+            this.cumulative = cumulative;
+        }
+
+        String prometheus() {
+            StringBuilder builder = new StringBuilder(4096);
+            builder.append("# HELP jtop_sample_timestamp_seconds Time of the latest sample.\n");
+            builder.append("# TYPE jtop_sample_timestamp_seconds gauge\n");
+            builder.append("jtop_sample_timestamp_seconds{pid=");
+            label(builder, pid);
+            builder.append("} ").append(time / 1000.0).append('\n');
+
+            builder.append("# HELP jtop_thread_cpu_seconds_total Cpu time used by each top thread.\n");
+            builder.append("# TYPE jtop_thread_cpu_seconds_total counter\n");
+            for (Stat stat : threads) {
+                threadMetric(builder, "jtop_thread_cpu_seconds_total", stat, null);
+                builder.append(stat.getTotalTime() / 1000).append('\n');
+            }
+
+            builder.append("# HELP jtop_thread_cpu_cores Cores used by each top thread since the sample before.\n");
+            builder.append("# TYPE jtop_thread_cpu_cores gauge\n");
+            for (Stat stat : threads) {
+                threadMetric(builder, "jtop_thread_cpu_cores", stat, null);
+                builder.append(stat.getElapsed() > 0 ? stat.getCurrentTime() / stat.getElapsed() : 0).append('\n');
+            }
+
+            builder.append("# HELP jtop_thread_cpu_average_cores Load average of each top thread, in cores.\n");
+            builder.append("# TYPE jtop_thread_cpu_average_cores gauge\n");
+            for (Stat stat : threads) {
+                for (int i = 0; i < AVERAGE_LABELS.length; i++) {
+                    threadMetric(builder, "jtop_thread_cpu_average_cores", stat, AVERAGE_LABELS[i]);
+                    builder.append(stat.getAverage(i)).append('\n');
+                }
+            }
+
+            boolean header = false;
+            for (Stat stat : threads) {
+                if (stat.getTotalAllocated() < 0) {
+                    continue;
+                }
+                if (!header) {
+                    builder.append("# HELP jtop_thread_allocated_bytes_total Bytes allocated by each top thread.\n");
+                    builder.append("# TYPE jtop_thread_allocated_bytes_total counter\n");
+                    header = true;
+                }
+                threadMetric(builder, "jtop_thread_allocated_bytes_total", stat, null);
+                builder.append(stat.getTotalAllocated()).append('\n');
+            }
+
+            // in a window or with a half-life the counts also go down, so they are gauges
+            String type = cumulative ? "counter" : "gauge";
+            String suffix = cumulative ? "_total" : "";
+            builder.append("# HELP jtop_stack_samples").append(suffix).append(" Thread stacks counted by the stacks view.\n");
+            builder.append("# TYPE jtop_stack_samples").append(suffix).append(' ').append(type).append('\n');
+            builder.append("jtop_stack_samples").append(suffix).append("{pid=");
+            label(builder, pid);
+            builder.append("} ").append(samples).append('\n');
+
+            builder.append("# HELP jtop_frame_samples").append(suffix).append(" Thread stacks that had the frame innermost.\n");
+            builder.append("# TYPE jtop_frame_samples").append(suffix).append(' ').append(type).append('\n');
+            for (Map.Entry<String, Integer> frame : frames.entrySet()) {
+                builder.append("jtop_frame_samples").append(suffix).append("{pid=");
+                label(builder, pid);
+                builder.append(",frame=");
+                label(builder, frame.getKey());
+                builder.append("} ").append(frame.getValue()).append('\n');
+            }
+            return builder.toString();
+        }
+
+        private void threadMetric(StringBuilder builder, String name, Stat stat, String period) {
+            builder.append(name).append("{pid=");
+            label(builder, stat.getThread().getPid());
+            builder.append(",id=");
+            label(builder, stat.getId());
+            builder.append(",thread=");
+            label(builder, stat.getName());
+            if (period != null) {
+                builder.append(",period=");
+                label(builder, period);
+            }
+            builder.append("} ");
+        }
+
+        private static void label(StringBuilder builder, String value) {
+            builder.append('"');
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                if (c == '\\' || c == '"') {
+                    builder.append('\\').append(c);
+                } else if (c == '\n') {
+                    builder.append("\\n");
+                } else {
+                    builder.append(c);
+                }
+            }
+            builder.append('"');
+        }
+
+        String json() {
+            StringBuilder builder = new StringBuilder(4096);
+            builder.append("{\"time\":").append(time);
+            builder.append(",\"pid\":");
+            BatchWriter.jsonString(builder, pid);
+            builder.append(",\"threads\":[");
+            for (int t = 0; t < threads.size(); t++) {
+                Stat stat = threads.get(t);
+                if (t > 0) {
+                    builder.append(',');
+                }
+                builder.append("{\"pid\":");
+                BatchWriter.jsonString(builder, stat.getThread().getPid());
+                builder.append(",\"id\":");
+                BatchWriter.jsonString(builder, stat.getId());
+                builder.append(",\"name\":");
+                BatchWriter.jsonString(builder, stat.getName());
+                builder.append(",\"cpu_ms\":").append(stat.getCurrentTime());
+                builder.append(",\"total_cpu_ms\":").append(stat.getTotalTime());
+                for (int i = 0; i < AVERAGE_LABELS.length; i++) {
+                    builder.append(",\"cores_").append(AVERAGE_LABELS[i]).append("\":").append(stat.getAverage(i));
+                }
+                if (stat.getTotalAllocated() >= 0) {
+                    builder.append(",\"allocated_bytes\":").append(stat.getTotalAllocated());
+                }
+                builder.append('}');
+            }
+            builder.append("],\"stack_samples\":").append(samples);
+            builder.append(",\"frames\":[");
+            boolean first = true;
+            for (Map.Entry<String, Integer> frame : frames.entrySet()) {
+                if (!first) {
+                    builder.append(',');
+                }
+                first = false;
+                builder.append("{\"frame\":");
+                BatchWriter.jsonString(builder, frame.getKey());
+                builder.append(",\"samples\":").append(frame.getValue()).append('}');
+            }
+            builder.append("]}\n");
+            return builder.toString();
+        }
+    }
+}
@@ -0,0 +1,191 @@
+package jtop;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Samples several JVMs at once. Each JVM has its own sampler, run every
+ * interval on a small shared pool, with the JVMs' start times spread evenly
+ * across the interval so the host never has to serve all of the dumps at the
+ * same moment. A call to sample() merges the latest result of every JVM that
+ * has a new one since the last call, with each thread stamped with the time its
+ * JVM was dumped, so cpu deltas can be taken between dumps instead of merges.
+ * A JVM that hasn't finished a dump for STALL_INTERVALS intervals, say because
+ * its jstack hangs, counts as failing, and its first dump is only waited for
+ * that long.
+ */
+public class MultiSampler implements Sampler {
+
+    private static final int STALL_INTERVALS = 2;
+
+    private final Config config;
+    private final List<Target> targets = new ArrayList<>();
+    private final ScheduledExecutorService pool;
+    private volatile long fullRequested;
+
+    public MultiSampler(Config config, List<String> pids, List<Sampler> samplers, int threads) {
+        this.config = config;
+        this.pool = Executors.newScheduledThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "jtop-sampler");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        long interval = config.getInterval();
+        for (int i = 0; i < pids.size(); i++) {
+            Target target = new Target(pids.get(i), samplers.get(i));
+            targets.add(target);
+            pool.schedule(target, i * interval / pids.size(), TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Only merges the JVMs whose latest dump has full stacks. Those that were last
+     * sampled for cpu only are left out until their next, full, dump.
+     */
+    @Override
+    public List<ThreadInfo> sample() throws IOException {
+        fullRequested = System.currentTimeMillis();
+        return merge(true);
+    }
+
+    /**
+     * Full stacks are only dumped while someone has recently asked for them, the
+     * rest of the time the JVMs are only sampled for cpu.
+     */
+    @Override
+    public List<ThreadInfo> sampleCpu() throws IOException {
+        return merge(false);
+    }
+
+    @Override
+    public boolean cpuSamplesHaveStacks() {
+        for (Target target : targets) {
+            if (!target.sampler.cpuSamplesHaveStacks()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private synchronized List<ThreadInfo> merge(boolean full) throws IOException {
+        List<ThreadInfo> merged = new ArrayList<>();
+        IOException error = null;
+        for (Target target : targets) {
+            try {
+                long remaining = target.created + config.getInterval() * STALL_INTERVALS - System.currentTimeMillis();
+                if (!target.first.await(Math.max(0, remaining), TimeUnit.MILLISECONDS)) {
+                    continue;
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted waiting for the first sample of " + target.pid, ex);
+            }
+            Dump latest = target.latest;
+            if (latest != null) {
+                // a dump already merged would count its cpu time and stacks twice
+                if (latest != target.merged && (latest.full || !full)) {
+                    merged.addAll(latest.threads);
+                    target.merged = latest;
+                }
+            } else if (target.error != null) {
+                error = target.error;
+            }
+        }
+        if (merged.isEmpty() && error != null) {
+            throw error;
+        }
+        return merged;
+    }
+
+    @Override
+    public String getStatus() {
+        int failing = 0;
+        long now = System.currentTimeMillis();
+        for (Target target : targets) {
+            if (target.error != null || now - target.finished >= config.getInterval() * STALL_INTERVALS) {
+                failing++;
+            }
+        }
+        String status = targets.size() + " JVMs";
+        if (failing > 0) {
+            status += " (" + failing + " failing)";
+        }
+        return status;
+    }
+
+    @Override
+    public void close() throws IOException {
+        pool.shutdownNow();
+        for (Target target : targets) {
+            target.sampler.close();
+        }
+    }
+
+    private class Target implements Runnable {
+        private final String pid;
+        private final Sampler sampler;
+        private final CountDownLatch first = new CountDownLatch(1);
+        private volatile Dump latest;
+        private Dump merged;
+        private volatile IOException error;
+        private final long created = System.currentTimeMillis();
+        /** When the latest dump ended, or the target was created. */
+        private volatile long finished = created;
+
+        private Target(String pid, Sampler sampler) {
+            this.pid = pid;
+            this.sampler = sampler;
+        }
+
+        @Override
+        public void run() {
+            long started = System.currentTimeMillis();
+            long interval = config.getInterval();
+            try {
+                boolean full = started - fullRequested < interval * 2;
+                List<ThreadInfo> threads = full ? sampler.sample() : sampler.sampleCpu();
+                // the threads were read somewhere during the call, the middle is the best guess
+                long time = (started + System.currentTimeMillis()) / 2;
+                List<ThreadInfo> stamped = new ArrayList<>(threads.size());
+                for (ThreadInfo thread : threads) {
+                    stamped.add(thread.withTime(time));
+                }
+                latest = new Dump(stamped, full || sampler.cpuSamplesHaveStacks());
+                error = null;
+            } catch (IOException ex) {
+                latest = null;
+                error = ex;
+            } catch (RuntimeException ex) {
+                latest = null;
+                error = new IOException("Sampling " + pid + " failed", ex);
+            } finally {
+                finished = System.currentTimeMillis();
+                first.countDown();
+            }
+
+            if (!pool.isShutdown()) {
+                long elapsed = System.currentTimeMillis() - started;
+                pool.schedule(this, Math.max(0, interval - elapsed), TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    /**
+     * One JVM's threads from one dump, and whether the dump has their full stacks.
+     */
+    private static class Dump {
+        private final List<ThreadInfo> threads;
+        private final boolean full;
+
+        private Dump(List<ThreadInfo> threads, boolean full) {
+            this.threads = threads;
+            this.full = full;
+        }
+    }
+}
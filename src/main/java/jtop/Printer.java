@@ -9,14 +9,21 @@ import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.stream.Collectors;
 
 public abstract class Printer implements Runnable {
 
+    private static final int QUEUE_SIZE = 4;
+
+    private final BlockingQueue<SamplePipeline.Sample> samples = new ArrayBlockingQueue<>(QUEUE_SIZE);
+    private volatile long dropped;
     protected final Config config;
     protected final NumberFormat format;
     protected final Map<Character, PrinterCommandHandler> handlers;
     protected volatile boolean active;
+    protected volatile int firstRow;
     protected volatile List<String> output = new ArrayList<>(Arrays.asList("Collecting first sample..."));
 
     public Printer(Config config) throws IOException {
@@ -37,6 +44,11 @@ public abstract class Printer implements Runnable {
         handlers.put('n', this::setThreadNameRegex);
         handlers.put('f', this::setFrameFilter);
         handlers.put('s', this::swapActive);
+        if (config.getSampler() instanceof ReplaySampler) {
+            ReplaySampler replay = (ReplaySampler)config.getSampler();
+            handlers.put('<', reader -> replay.seek(-60000));
+            handlers.put('>', reader -> replay.seek(60000));
+        }
         return handlers;
     }
 
@@ -44,14 +56,23 @@ public abstract class Printer implements Runnable {
         return output;
     }
 
+    /**
+     * @return the lines of the output from the first on, at most count of them
+     */
+    public List<String> getLines(int first, int count) {
+        List<String> output = this.output;
+        int from = Math.min(first, output.size());
+        return output.subList(from, Math.min(from + count, output.size()));
+    }
+
     private void swapActive(TerminalLineReader reader) {
         config.swapActive();
     }
 
     private void setInterval(TerminalLineReader reader) {
         try {
-            config.setInterval(Long.parseLong(reader.readLine("Enter new interval in (seconds): ")) * 1000);
-            System.out.print("\rNew interval now set to: " + (config.getInterval() / 1000) + " seconds.");
+            config.setInterval((long)(Double.parseDouble(reader.readLine("Enter new interval in (seconds): ")) * 1000));
+            System.out.print("\rNew interval now set to: " + format.format(config.getInterval() / 1000.0) + " seconds.");
         } catch (Exception ex) { }
     }
 
@@ -85,10 +106,59 @@ public abstract class Printer implements Runnable {
         System.out.print(message);
     }
 
+    /**
+     * Queues a sample for the printer without ever blocking: when the printer has
+     * fallen behind, its oldest queued sample is dropped to make room.
+     */
+    public void offer(SamplePipeline.Sample sample) {
+        while (!samples.offer(sample)) {
+            if (samples.poll() != null) {
+                dropped++;
+            }
+        }
+    }
+
+    /**
+     * @return the next sample, waiting for it if needed
+     */
+    protected SamplePipeline.Sample nextSample() throws InterruptedException {
+        return samples.take();
+    }
+
+    /**
+     * @return the samples dropped because the printer fell behind
+     */
+    public long getDropped() {
+        return dropped;
+    }
+
+    /**
+     * @return whether the printer needs the stack, state and locks of every thread
+     * while it is displayed, rather than just cpu times
+     */
+    public boolean needsStacks() {
+        return true;
+    }
+
+    /**
+     * @return whether the printer needs the java.util.concurrent locks each thread
+     * owns, which the JVM only finds by walking the heap
+     */
+    public boolean needsSynchronizers() {
+        return false;
+    }
+
     public void setActive(boolean active) {
         this.active = active;
     }
 
+    /**
+     * Tells the printer which line of its output is at the top of the screen.
+     */
+    public void setFirstRow(int firstRow) {
+        this.firstRow = firstRow;
+    }
+
     protected abstract void runLoop() throws IOException, InterruptedException;
 
     @Override
@@ -99,13 +169,7 @@ public abstract class Printer implements Runnable {
             } catch (InterruptedException ex) {
                 return;
             } catch (Throwable ex) {
-                ByteArrayOutputStream bytesOut = new ByteArrayOutputStream();
-                try (PrintWriter writer = new PrintWriter(bytesOut)) {
-                    ex.printStackTrace(writer);
-                }
-                output = Arrays.stream(bytesOut.toString().split("\n"))
-                    .map(String::new)
-                    .collect(Collectors.toList());
+                showError(ex);
                 try {
                     Thread.sleep(config.getInterval());
                 } catch (InterruptedException e) {
@@ -115,6 +179,19 @@ public abstract class Printer implements Runnable {
         }
     }
 
+    /**
+     * Shows the stack trace of the error until the next output.
+     */
+    public void showError(Throwable ex) {
+        ByteArrayOutputStream bytesOut = new ByteArrayOutputStream();
+        try (PrintWriter writer = new PrintWriter(bytesOut)) {
+            ex.printStackTrace(writer);
+        }
+        output = Arrays.stream(bytesOut.toString().split("\n"))
+            .map(String::new)
+            .collect(Collectors.toList());
+    }
+
     protected abstract String getCommandsString();
 
 }
\ No newline at end of file
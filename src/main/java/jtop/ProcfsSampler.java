@@ -0,0 +1,196 @@
+package jtop;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Linux only: reads per-thread utime/stime from /proc/&lt;pid&gt;/task/&lt;tid&gt;/stat and
+ * joins it to java threads through the native thread id (jstack's nid).
+ *
+ * The cpu-only path never asks the target JVM for anything; a full stack dump
+ * from the delegate sampler is only taken every refreshSamples samples, or when
+ * a thread that wasn't around for the last dump shows up, to refresh the
+ * tid to name mapping.
+ */
+public class ProcfsSampler implements Sampler {
+
+    private static final int[] NO_FRAMES = new int[0];
+
+    private final String pid;
+    private final Sampler stacks;
+    private final int refreshSamples;
+    private final File taskDir;
+    private final double msPerTick;
+    private final byte[] buffer = new byte[1024];
+
+    private LongMap<ThreadInfo> threads = new LongMap<>();
+    private int samplesSinceRefresh;
+    private boolean refreshNeeded = true;
+
+    public ProcfsSampler(String pid, Sampler stacks, int refreshSamples) throws IOException {
+        this.pid = pid;
+        this.stacks = stacks;
+        this.refreshSamples = refreshSamples;
+        this.taskDir = new File("/proc/" + pid + "/task");
+        if (!taskDir.isDirectory()) {
+            throw new IOException("Unable to read " + taskDir + ", procfs sampling is only supported on Linux");
+        }
+        this.msPerTick = 1000.0 / clockTicks();
+    }
+
+    @Override
+    public synchronized List<ThreadInfo> sample() throws IOException {
+        refresh();
+        return readCpu(true);
+    }
+
+    @Override
+    public synchronized List<ThreadInfo> sampleCpu() throws IOException {
+        boolean refreshed = false;
+        if (refreshNeeded || ++samplesSinceRefresh >= refreshSamples) {
+            refresh();
+            refreshed = true;
+        }
+        return readCpu(refreshed);
+    }
+
+    @Override
+    public boolean cpuSamplesHaveStacks() {
+        return false;
+    }
+
+    private void refresh() throws IOException {
+        List<ThreadInfo> dump = stacks.sample();
+        LongMap<ThreadInfo> threads = new LongMap<>(dump.size());
+        for (ThreadInfo info : dump) {
+            if (info.getNativeId() >= 0) {
+                threads.put(info.getNativeId(), info);
+            }
+        }
+        this.threads = threads;
+        samplesSinceRefresh = 0;
+        refreshNeeded = false;
+    }
+
+    private List<ThreadInfo> readCpu(boolean withFrames) throws IOException {
+        String[] tids = taskDir.list();
+        if (tids == null) {
+            throw new IOException("Unable to list " + taskDir + ", has the JVM exited?");
+        }
+
+        List<ThreadInfo> result = new ArrayList<>(tids.length);
+        for (String tidStr : tids) {
+            long tid;
+            try {
+                tid = Long.parseLong(tidStr);
+            } catch (NumberFormatException ex) {
+                continue;
+            }
+
+            int len = readStat(tidStr);
+            if (len < 0) {
+                continue; // thread exited while we were listing
+            }
+            int fields = lastIndexOf(buffer, len, ')');
+            if (fields < 0) {
+                continue;
+            }
+            // fields after the comm: state(3) ... utime(14) stime(15)
+            int pos = skipFields(buffer, fields + 1, len, 11);
+            long utime = parseLong(buffer, pos, len);
+            pos = skipFields(buffer, pos, len, 1);
+            long stime = parseLong(buffer, pos, len);
+            double cpuTime = (utime + stime) * msPerTick;
+
+            ThreadInfo known = threads.get(tid);
+            if (known == null) {
+                int nameStart = indexOf(buffer, len, '(') + 1;
+                String name = new String(buffer, nameStart, fields - nameStart, StandardCharsets.UTF_8);
+                known = new ThreadInfo(pid, "nid=0x" + Long.toHexString(tid), tid, name, null, 0, NO_FRAMES);
+                threads.put(tid, known);
+                if (!withFrames) {
+                    refreshNeeded = true;
+                }
+            }
+            if (withFrames) {
+                result.add(new ThreadInfo(pid, known.getId(), tid, known.getName(), known.getState(), cpuTime, known.getFrames(), known.getLocks()));
+            } else {
+                result.add(new ThreadInfo(pid, known.getId(), tid, known.getName(), known.getState(), cpuTime, NO_FRAMES));
+            }
+        }
+        return result;
+    }
+
+    private int readStat(String tid) throws IOException {
+        try (FileInputStream in = new FileInputStream(new File(new File(taskDir, tid), "stat"))) {
+            int len = 0;
+            int read;
+            while (len < buffer.length && (read = in.read(buffer, len, buffer.length - len)) > 0) {
+                len += read;
+            }
+            return len;
+        } catch (IOException ex) {
+            return -1;
+        }
+    }
+
+    private static int skipFields(byte[] b, int pos, int len, int count) {
+        for (int i = 0; i < count; i++) {
+            while (pos < len && b[pos] == ' ') {
+                pos++;
+            }
+            while (pos < len && b[pos] != ' ') {
+                pos++;
+            }
+        }
+        while (pos < len && b[pos] == ' ') {
+            pos++;
+        }
+        return pos;
+    }
+
+    private static long parseLong(byte[] b, int pos, int len) {
+        long value = 0;
+        for (; pos < len && b[pos] >= '0' && b[pos] <= '9'; pos++) {
+            value = value * 10 + (b[pos] - '0');
+        }
+        return value;
+    }
+
+    private static int indexOf(byte[] b, int len, int c) {
+        for (int i = 0; i < len; i++) {
+            if (b[i] == c) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int lastIndexOf(byte[] b, int len, int c) {
+        for (int i = len - 1; i >= 0; i--) {
+            if (b[i] == c) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static long clockTicks() {
+        try {
+            List<String> output = Executor.execute("getconf", "CLK_TCK");
+            if (!output.isEmpty()) {
+                return Long.parseLong(output.get(0).trim());
+            }
+        } catch (Exception ex) { }
+        return 100;
+    }
+
+    @Override
+    public void close() throws IOException {
+        stacks.close();
+    }
+}
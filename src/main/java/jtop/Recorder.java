@@ -0,0 +1,207 @@
+package jtop;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Appends samples to a compact binary recording that {@link Recording} can read
+ * back. The file is a header followed by length-prefixed records:
+ *
+ * <pre>
+ * header: "JTOPREC" version(byte) pid(utf)
+ * record: type(byte) length(varint) payload
+ *   FRAME:  frame id, utf-8 length, utf-8 bytes
+ *   THREAD: thread index, id, native id + 1, name, pid (since version 2)
+ *   SAMPLE: time(8 bytes), keyframe(byte), thread count, then per thread:
+ *           thread index, cpu micros delta, state (since version 3, 0 if unknown, otherwise
+ *           Thread.State ordinal + 1), shared frame count, new frame count, new frame ids
+ * </pre>
+ *
+ * Frames and threads are written once, the first time a sample uses them. In a
+ * sample each thread's cpu time is stored as a delta from its previous sample,
+ * and its stack as the number of outermost frames it shares with its previous
+ * stack followed by only the frames that differ. Every KEYFRAME_INTERVAL
+ * samples the deltas restart from zero so a reader can seek without decoding
+ * the whole file.
+ */
+public class Recorder implements Closeable {
+
+    static final byte[] MAGIC = "JTOPREC".getBytes(StandardCharsets.US_ASCII);
+    static final int VERSION = 3;
+    static final int FRAME = 1;
+    static final int THREAD = 2;
+    static final int SAMPLE = 3;
+    static final int KEYFRAME_INTERVAL = 64;
+
+    private final DataOutputStream out;
+    private final Buffer record = new Buffer();
+    private final Buffer sample = new Buffer();
+    private final Map<String, Integer> threadIndexes = new HashMap<>();
+    private boolean[] writtenFrames = new boolean[1024];
+    private long[] lastCpu = new long[64];
+    private int[][] lastStack = new int[64][];
+    private int samples;
+
+    public Recorder(File file, String pid) throws IOException {
+        out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 64 * 1024));
+        out.write(MAGIC);
+        out.write(VERSION);
+        out.writeUTF(pid);
+        out.flush();
+    }
+
+    public synchronized void write(long time, List<ThreadInfo> threads) throws IOException {
+        boolean keyframe = samples++ % KEYFRAME_INTERVAL == 0;
+        if (keyframe) {
+            Arrays.fill(lastStack, null);
+            Arrays.fill(lastCpu, 0);
+        }
+
+        sample.reset();
+        sample.writeLong(time);
+        sample.write(keyframe ? 1 : 0);
+        sample.writeVarLong(threads.size());
+        for (ThreadInfo thread : threads) {
+            int index = threadIndex(thread);
+            sample.writeVarLong(index);
+
+            long cpu = Math.round(thread.getCpuTime() * 1000);
+            sample.writeVarLong(zigZag(cpu - lastCpu[index]));
+            lastCpu[index] = cpu;
+            sample.write(thread.getState() == null ? 0 : thread.getState().ordinal() + 1);
+
+            int[] frames = thread.getFrames();
+            int[] last = lastStack[index];
+            int shared = 0;
+            if (last != null) {
+                int max = Math.min(frames.length, last.length);
+                while (shared < max && frames[frames.length - 1 - shared] == last[last.length - 1 - shared]) {
+                    shared++;
+                }
+            }
+            sample.writeVarLong(shared);
+            sample.writeVarLong(frames.length - shared);
+            for (int i = 0; i < frames.length - shared; i++) {
+                sample.writeVarLong(frame(frames[i]));
+            }
+            lastStack[index] = frames;
+        }
+        writeRecord(SAMPLE, sample);
+        out.flush();
+    }
+
+    private int frame(int id) throws IOException {
+        if (id >= writtenFrames.length) {
+            writtenFrames = Arrays.copyOf(writtenFrames, Math.max(id + 1, writtenFrames.length * 2));
+        }
+        if (!writtenFrames[id]) {
+            writtenFrames[id] = true;
+            byte[] bytes = FrameDictionary.get(id).getBytes(StandardCharsets.UTF_8);
+            record.reset();
+            record.writeVarLong(id);
+            record.writeVarLong(bytes.length);
+            record.write(bytes, 0, bytes.length);
+            writeRecord(FRAME, record);
+        }
+        return id;
+    }
+
+    /**
+     * Threads are identified by pid, id and name, so a renamed thread simply gets a new
+     * index instead of the recording needing to track renames.
+     */
+    private int threadIndex(ThreadInfo thread) throws IOException {
+        String key = thread.getKey() + '\0' + thread.getName();
+        Integer index = threadIndexes.get(key);
+        if (index == null) {
+            index = threadIndexes.size();
+            threadIndexes.put(key, index);
+            if (index == lastCpu.length) {
+                lastCpu = Arrays.copyOf(lastCpu, index * 2);
+                lastStack = Arrays.copyOf(lastStack, index * 2);
+            }
+
+            record.reset();
+            record.writeVarLong(index);
+            record.writeUTF(thread.getId());
+            record.writeVarLong(thread.getNativeId() + 1);
+            record.writeUTF(thread.getName());
+            record.writeUTF(thread.getPid());
+            writeRecord(THREAD, record);
+        }
+        return index;
+    }
+
+    private void writeRecord(int type, Buffer payload) throws IOException {
+        out.write(type);
+        long length = payload.size;
+        while ((length & ~0x7FL) != 0) {
+            out.write((int)((length & 0x7F) | 0x80));
+            length >>>= 7;
+        }
+        out.write((int)length);
+        out.write(payload.bytes, 0, payload.size);
+    }
+
+    private static long zigZag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        out.close();
+    }
+
+    private static class Buffer {
+        private byte[] bytes = new byte[4096];
+        private int size;
+
+        private void reset() {
+            size = 0;
+        }
+
+        private void write(int b) {
+            if (size == bytes.length) {
+                bytes = Arrays.copyOf(bytes, size * 2);
+            }
+            bytes[size++] = (byte)b;
+        }
+
+        private void write(byte[] b, int offset, int length) {
+            if (size + length > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(size + length, size * 2));
+            }
+            System.arraycopy(b, offset, bytes, size, length);
+            size += length;
+        }
+
+        private void writeLong(long value) {
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                write((int)(value >>> shift));
+            }
+        }
+
+        private void writeVarLong(long value) {
+            while ((value & ~0x7FL) != 0) {
+                write((int)((value & 0x7F) | 0x80));
+                value >>>= 7;
+            }
+            write((int)value);
+        }
+
+        private void writeUTF(String str) {
+            byte[] utf = str.getBytes(StandardCharsets.UTF_8);
+            writeVarLong(utf.length);
+            write(utf, 0, utf.length);
+        }
+    }
+}
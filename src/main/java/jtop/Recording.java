@@ -0,0 +1,321 @@
+package jtop;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Reads a file written by {@link Recorder}. The file is memory-mapped and
+ * indexed lazily: opening only reads the header, and records are scanned as
+ * far as the samples being asked for, so even a very large recording opens
+ * immediately. A (possibly) truncated last record, e.g. from a recorder that
+ * was killed, is ignored.
+ */
+public class Recording implements Closeable {
+
+    private static final long SEGMENT_SIZE = 1L << 30;
+    private static final Thread.State[] STATES = Thread.State.values();
+
+    private final RandomAccessFile file;
+    private final MappedByteBuffer[] segments;
+    private final long length;
+    private final int version;
+    private final String pid;
+
+    private final List<ThreadInfo> threads = new ArrayList<>();
+    private int[] frames = new int[1024];
+    private long indexed;
+    private boolean fullyIndexed;
+    private long[] sampleOffsets = new long[1024];
+    private long[] sampleTimes = new long[1024];
+    private int sampleCount;
+
+    private int decoded = -1;
+    private List<ThreadInfo> lastDecoded;
+    private long[] cpu = new long[64];
+    private int[][] stacks = new int[64][];
+
+    public Recording(File path) throws IOException {
+        file = new RandomAccessFile(path, "r");
+        try {
+            length = file.length();
+            FileChannel channel = file.getChannel();
+            segments = new MappedByteBuffer[(int)((length + SEGMENT_SIZE - 1) / SEGMENT_SIZE)];
+            for (int i = 0; i < segments.length; i++) {
+                long start = i * SEGMENT_SIZE;
+                segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(SEGMENT_SIZE, length - start));
+            }
+
+            Cursor cursor = new Cursor(0);
+            for (byte b : Recorder.MAGIC) {
+                if (cursor.remaining() == 0 || cursor.read() != b) {
+                    throw new IOException(path + " is not a jtop recording");
+                }
+            }
+            version = cursor.read();
+            if (version < 1 || version > Recorder.VERSION) {
+                throw new IOException("Unsupported recording version " + version + " in " + path);
+            }
+            int pidLength = (cursor.read() << 8) | cursor.read();
+            pid = cursor.readString(pidLength);
+            indexed = cursor.pos;
+        } catch (IOException | RuntimeException ex) {
+            file.close();
+            throw ex;
+        }
+    }
+
+    public String getPid() {
+        return pid;
+    }
+
+    public synchronized boolean isEmpty() throws IOException {
+        return !indexTo(0);
+    }
+
+    public synchronized boolean hasSample(int sample) throws IOException {
+        return indexTo(sample);
+    }
+
+    /**
+     * @return the number of samples found so far, the recording may have more
+     */
+    public synchronized int getIndexedSamples() {
+        return sampleCount;
+    }
+
+    public synchronized long getTime(int sample) throws IOException {
+        if (!indexTo(sample)) {
+            throw new IndexOutOfBoundsException("Sample " + sample + " is past the end of the recording");
+        }
+        return sampleTimes[sample];
+    }
+
+    /**
+     * @return the last sample taken at or before the time, or the first sample if
+     * the recording starts later
+     */
+    public synchronized int findSample(long time) throws IOException {
+        while (!fullyIndexed && (sampleCount == 0 || sampleTimes[sampleCount - 1] <= time)) {
+            indexTo(sampleCount);
+        }
+        int index = Arrays.binarySearch(sampleTimes, 0, sampleCount, time);
+        if (index < 0) {
+            index = -index - 2;
+        } else {
+            while (index + 1 < sampleCount && sampleTimes[index + 1] == time) {
+                index++;
+            }
+        }
+        return Math.max(index, 0);
+    }
+
+    public synchronized List<ThreadInfo> read(int sample) throws IOException {
+        if (!indexTo(sample)) {
+            throw new IndexOutOfBoundsException("Sample " + sample + " is past the end of the recording");
+        }
+
+        if (sample == decoded) {
+            return lastDecoded;
+        }
+
+        int from;
+        if (decoded >= 0 && decoded < sample && sample - decoded <= Recorder.KEYFRAME_INTERVAL) {
+            from = decoded + 1;
+        } else {
+            // the deltas have to be decoded starting from the previous keyframe
+            from = sample;
+            while (!new Cursor(sampleOffsets[from]).peekKeyframe()) {
+                from--;
+            }
+        }
+        for (int i = from; i <= sample; i++) {
+            lastDecoded = decode(new Cursor(sampleOffsets[i]), i == sample);
+            decoded = i;
+        }
+        return lastDecoded;
+    }
+
+    private List<ThreadInfo> decode(Cursor cursor, boolean build) {
+        cursor.pos += 8;
+        if (cursor.read() == 1) {
+            Arrays.fill(cpu, 0);
+            Arrays.fill(stacks, null);
+        }
+        int count = (int)cursor.readVarLong();
+        List<ThreadInfo> result = build ? new ArrayList<>(count) : null;
+        for (int t = 0; t < count; t++) {
+            int index = (int)cursor.readVarLong();
+            if (index >= cpu.length) {
+                cpu = Arrays.copyOf(cpu, Math.max(index + 1, cpu.length * 2));
+                stacks = Arrays.copyOf(stacks, cpu.length);
+            }
+
+            long delta = cursor.readVarLong();
+            cpu[index] += (delta >>> 1) ^ -(delta & 1);
+            int state = version < 3 ? 0 : cursor.read();
+
+            int shared = (int)cursor.readVarLong();
+            int added = (int)cursor.readVarLong();
+            int[] stack = new int[shared + added];
+            for (int i = 0; i < added; i++) {
+                stack[i] = frames[(int)cursor.readVarLong()];
+            }
+            if (shared > 0) {
+                int[] last = stacks[index];
+                System.arraycopy(last, last.length - shared, stack, added, shared);
+            }
+            stacks[index] = stack;
+
+            if (build) {
+                ThreadInfo thread = threads.get(index);
+                result.add(new ThreadInfo(thread.getPid(), thread.getId(), thread.getNativeId(), thread.getName(), state == 0 ? null : STATES[state - 1], cpu[index] / 1000.0, stack));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Scans records until the sample is found or the file ends.
+     * @return whether the sample exists
+     */
+    private boolean indexTo(int sample) throws IOException {
+        Cursor cursor = new Cursor(indexed);
+        while (sampleCount <= sample && !fullyIndexed) {
+            if (cursor.remaining() < 2) {
+                fullyIndexed = true;
+                break;
+            }
+            long start = cursor.pos;
+            int type;
+            long recordLength;
+            try {
+                type = cursor.read();
+                recordLength = cursor.readVarLong();
+            } catch (IndexOutOfBoundsException ex) {
+                recordLength = Long.MAX_VALUE;
+                type = -1;
+            }
+            if (recordLength > cursor.remaining()) {
+                fullyIndexed = true;
+                break;
+            }
+            long end = cursor.pos + recordLength;
+            switch (type) {
+                case Recorder.FRAME:
+                    int id = (int)cursor.readVarLong();
+                    int frameLength = (int)cursor.readVarLong();
+                    if (id >= frames.length) {
+                        frames = Arrays.copyOf(frames, Math.max(id + 1, frames.length * 2));
+                    }
+                    frames[id] = cursor.internFrame(frameLength);
+                    break;
+                case Recorder.THREAD:
+                    int index = (int)cursor.readVarLong();
+                    String threadId = cursor.readString((int)cursor.readVarLong());
+                    long nativeId = cursor.readVarLong() - 1;
+                    String name = cursor.readString((int)cursor.readVarLong());
+                    String threadPid = version < 2 ? pid : cursor.readString((int)cursor.readVarLong());
+                    while (threads.size() <= index) {
+                        threads.add(null);
+                    }
+                    threads.set(index, new ThreadInfo(threadPid, threadId, nativeId, name, null, 0, null));
+                    break;
+                case Recorder.SAMPLE:
+                    if (sampleCount == sampleOffsets.length) {
+                        sampleOffsets = Arrays.copyOf(sampleOffsets, sampleCount * 2);
+                        sampleTimes = Arrays.copyOf(sampleTimes, sampleCount * 2);
+                    }
+                    sampleOffsets[sampleCount] = cursor.pos;
+                    sampleTimes[sampleCount] = cursor.readLong();
+                    sampleCount++;
+                    break;
+                default:
+                    throw new IOException("Corrupt recording, unknown record type " + type + " at offset " + start);
+            }
+            cursor.pos = end;
+            indexed = end;
+        }
+        return sample < sampleCount;
+    }
+
+    @Override
+    public void close() throws IOException {
+        file.close();
+    }
+
+    /**
+     * Position in the mapped file. Reads go through the segment the position falls
+     * in, so records may straddle segment boundaries.
+     */
+    private class Cursor {
+        private long pos;
+        private byte[] scratch = new byte[256];
+
+        private Cursor(long pos) {
+            this.pos = pos;
+        }
+
+        private long remaining() {
+            return length - pos;
+        }
+
+        private int read() {
+            int b = segments[(int)(pos / SEGMENT_SIZE)].get((int)(pos % SEGMENT_SIZE)) & 0xFF;
+            pos++;
+            return b;
+        }
+
+        private long readLong() {
+            long value = 0;
+            for (int i = 0; i < 8; i++) {
+                value = (value << 8) | read();
+            }
+            return value;
+        }
+
+        private long readVarLong() {
+            long value = 0;
+            for (int shift = 0; ; shift += 7) {
+                int b = read();
+                value |= (long)(b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+        }
+
+        private boolean peekKeyframe() {
+            long start = pos;
+            pos += 8;
+            boolean keyframe = read() == 1;
+            pos = start;
+            return keyframe;
+        }
+
+        private byte[] readBytes(int count) {
+            if (scratch.length < count) {
+                scratch = new byte[count];
+            }
+            for (int i = 0; i < count; i++) {
+                scratch[i] = (byte)read();
+            }
+            return scratch;
+        }
+
+        private String readString(int count) {
+            return new String(readBytes(count), 0, count, StandardCharsets.UTF_8);
+        }
+
+        private int internFrame(int count) {
+            return FrameDictionary.intern(readBytes(count), 0, count);
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package jtop;
+
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Plays back a {@link Recording} in real time: each sample returns what was
+ * recorded at the corresponding point of the recording, so the printers see the
+ * same intervals they would have seen live. Seeking moves the playback clock
+ * forward or back.
+ */
+public class ReplaySampler implements Sampler {
+
+    private final Recording recording;
+    private final long start;
+    private final SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+    private long wallStart = System.currentTimeMillis();
+    private long current;
+
+    public ReplaySampler(Recording recording) throws IOException {
+        if (recording.isEmpty()) {
+            throw new IOException("The recording doesn't contain any samples");
+        }
+        this.recording = recording;
+        this.start = recording.getTime(0);
+        this.current = start;
+    }
+
+    @Override
+    public synchronized List<ThreadInfo> sample() throws IOException {
+        long time = start + System.currentTimeMillis() - wallStart;
+        int sample = recording.findSample(time);
+        current = recording.getTime(sample);
+        if (time > current && sample + 1 >= recording.getIndexedSamples()) {
+            // hold the clock at the end of the recording so seeking back works from there
+            wallStart += time - current;
+        }
+        return recording.read(sample);
+    }
+
+    public synchronized void seek(long millis) {
+        long time = start + System.currentTimeMillis() - wallStart;
+        millis = Math.max(millis, start - time);
+        wallStart -= millis;
+    }
+
+    @Override
+    public synchronized String getStatus() {
+        return "replay: " + dateFormat.format(new Date(current)) + " (< -1m | > +1m)";
+    }
+
+    @Override
+    public void close() throws IOException {
+        recording.close();
+    }
+}
@@ -1,8 +1,18 @@
 package jtop;
 
 import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -23,12 +33,12 @@ public class Runner {
         .addOption(Option.builder("i")
             .longOpt("interval")
             .hasArg(true)
-            .desc("Interval with which to sample the JVM.")
+            .desc("Interval in seconds with which to sample the JVM. Fractions of a second are allowed.")
             .build())
         .addOption(Option.builder("j")
             .longOpt("jvm")
             .hasArg(true)
-            .desc("Pid of the JVM to track. If one isn't specified, you will be prompted for one")
+            .desc("Pid of the JVM to track, a comma separated list of pids, or 'all' for every running JVM. If one isn't specified, you will be prompted for one")
             .build())
         .addOption(Option.builder("f")
             .longOpt("frame")
@@ -43,18 +53,99 @@ public class Runner {
         .addOption(Option.builder("c")
             .longOpt("cpu")
             .optionalArg(true)
-            .desc("Display cpu usage by thread. An optional usage per second can also be passed. This is mutually exclusive with -s (--stacks).")
+            .desc("Display cpu usage by thread. An optional usage per second can also be passed. This is mutually exclusive with -s (--stacks), -t (--states) and -k (--locks).")
+            .build())
+        .addOption(Option.builder("a")
+            .longOpt("alloc")
+            .hasArg(false)
+            .desc("Rank threads in cpu mode by the bytes they allocate per second instead of cpu time. Requires the jmx sampler.")
             .build())
         .addOption(Option.builder("s")
             .longOpt("stacks")
             .hasArg(false)
-            .desc("Display stack sample occurences. This is mutually exclusive with -c (--cpu).")
+            .desc("Display stack sample occurences. This is mutually exclusive with -c (--cpu), -t (--states) and -k (--locks).")
+            .build())
+        .addOption(Option.builder("t")
+            .longOpt("states")
+            .hasArg(false)
+            .desc("Display thread counts per state for every thread pool. This is mutually exclusive with -c (--cpu), -s (--stacks) and -k (--locks).")
+            .build())
+        .addOption(Option.builder("k")
+            .longOpt("locks")
+            .hasArg(false)
+            .desc("Display contended locks, their owners and waiting threads. This is mutually exclusive with -c (--cpu), -s (--stacks) and -t (--states).")
+            .build())
+        .addOption(Option.builder("o")
+            .longOpt("on-cpu")
+            .hasArg(false)
+            .desc("Only count RUNNABLE threads in stack mode, an estimate of the code actually running rather than waiting.")
             .build())
         .addOption(Option.builder("l")
             .longOpt("limit")
             .hasArg(true)
             .desc("Limits the top X threads to display at once (default: 20), OR the top X % of frame occurrences (default: 5).")
             .build())
+        .addOption(Option.builder("m")
+            .longOpt("sampler")
+            .hasArg(true)
+            .desc("How to sample the JVM: 'jstack' forks jstack for every sample (default), 'jmx' attaches once and samples over a persistent JMX connection.")
+            .build())
+        .addOption(Option.builder("p")
+            .longOpt("procfs")
+            .hasArg(true)
+            .optionalArg(true)
+            .desc("Linux only: read thread cpu times from /proc and only take a full stack dump every X cpu samples (default: 10) to refresh thread names. Requires the jstack sampler.")
+            .build())
+        .addOption(Option.builder()
+            .longOpt("budget")
+            .hasArg(true)
+            .desc("Adapt the interval to keep sampling under X percent of wall time (e.g. 1), sampling more often when the JVM's cpu usage jumps and less often while it is idle. The -i interval becomes the longest one used.")
+            .build())
+        .addOption(Option.builder()
+            .longOpt("window")
+            .hasArg(true)
+            .desc("Only count the last X samples in the stacks view, or with a unit (e.g. 30s, 5m) decay older samples with that half-life. By default every sample counts until reset.")
+            .build())
+        .addOption(Option.builder()
+            .longOpt("baseline")
+            .hasArg(true)
+            .desc("Compare the stacks view to the folded stacks in this file, as written by --export or the e command. The b command makes the stacks counted so far the baseline instead.")
+            .build())
+        .addOption(Option.builder()
+            .longOpt("record")
+            .hasArg(true)
+            .desc("Don't display anything, instead append every sample to this file until stopped. View it later with --replay.")
+            .build())
+        .addOption(Option.builder()
+            .longOpt("replay")
+            .hasArg(true)
+            .desc("Display a file written by --record instead of a live JVM. Use < and > to move back and forward in time.")
+            .build())
+        .addOption(Option.builder()
+            .longOpt("export")
+            .hasArg(true)
+            .desc("Don't display anything, instead write the collected stacks to this file after every sample: a flame graph if it ends in .svg or .html, folded stacks otherwise. With --replay the whole recording is exported once.")
+            .build())
+        .addOption(Option.builder()
+            .longOpt("http")
+            .hasArg(true)
+            .desc("Don't display anything, instead serve the top threads of the latest sample and the hottest frames of the stacks view (every sample, or the --window) on this port of the loopback address, at /metrics in the Prometheus text format and at /json.")
+            .build())
+        .addOption(Option.builder()
+            .longOpt("batch")
+            .hasArg(true)
+            .desc("Don't display anything, instead write the top threads of every sample as 'json' (one object per line) or 'csv'. With --replay the whole recording is written at once.")
+            .build())
+        .addOption(Option.builder()
+            .longOpt("output")
+            .hasArg(true)
+            .desc("File to write --batch output to (default: stdout).")
+            .build())
+        .addOption(Option.builder()
+            .longOpt("frames")
+            .hasArg(true)
+            .desc("Include the top X stack frames of each thread in --batch output (default: 0).")
+            .build())
         .addOption(Option.builder("h")
             .longOpt("help")
             .hasArg(false)
@@ -75,13 +166,62 @@ public class Runner {
         if (commandLine.hasOption("h")) {
             printHelp();
             return;
-        } else if (commandLine.hasOption("c") && commandLine.hasOption("s")) {
+        } else if ((commandLine.hasOption("c") ? 1 : 0) + (commandLine.hasOption("s") ? 1 : 0) + (commandLine.hasOption("t") ? 1 : 0) + (commandLine.hasOption("k") ? 1 : 0) > 1) {
             printHelp();
             System.out.println();
-            System.out.println("ERROR: only one of -c (--cpu) and -s (--stacks) can be specified.");
+            System.out.println("ERROR: only one of -c (--cpu), -s (--stacks), -t (--states) and -k (--locks) can be specified.");
             return;
         }
 
+        String samplerType = commandLine.getOptionValue("m", "jstack");
+        if (!samplerType.equals("jstack") && !samplerType.equals("jmx")) {
+            printHelp();
+            System.out.println();
+            System.out.println("ERROR: -m (--sampler) must be one of: jstack, jmx");
+            return;
+        } else if (commandLine.hasOption("batch") && !commandLine.getOptionValue("batch").matches("json|csv")) {
+            printHelp();
+            System.out.println();
+            System.out.println("ERROR: --batch must be one of: json, csv");
+            return;
+        } else if (commandLine.hasOption("http") && !isPort(commandLine.getOptionValue("http"))) {
+            printHelp();
+            System.out.println();
+            System.out.println("ERROR: --http must be a port number from 0 to 65535.");
+            return;
+        } else if (commandLine.hasOption("a") && !samplerType.equals("jmx")) {
+            printHelp();
+            System.out.println();
+            System.out.println("ERROR: -a (--alloc) needs the allocation counters only the jmx sampler reads.");
+            return;
+        } else if (commandLine.hasOption("p") && !samplerType.equals("jstack")) {
+            printHelp();
+            System.out.println();
+            System.out.println("ERROR: -p (--procfs) needs the native thread ids only the jstack sampler provides.");
+            return;
+        } else if (commandLine.getOptionValue("p") != null && !isAtLeast(commandLine.getOptionValue("p"), 1)) {
+            printHelp();
+            System.out.println();
+            System.out.println("ERROR: -p (--procfs) must be a number of samples, 1 or more.");
+            return;
+        } else if (commandLine.hasOption("budget") && !isBudget(commandLine.getOptionValue("budget"))) {
+            printHelp();
+            System.out.println();
+            System.out.println("ERROR: --budget must be a percentage above 0 and at most 100.");
+            return;
+        } else if (commandLine.hasOption("frames") && !isAtLeast(commandLine.getOptionValue("frames"), 0)) {
+            printHelp();
+            System.out.println();
+            System.out.println("ERROR: --frames must be a number of frames, 0 or more.");
+            return;
+        }
+
+        Recording recording = null;
+        if (commandLine.hasOption("replay")) {
+            recording = new Recording(new File(commandLine.getOptionValue("replay")));
+            pid = recording.getPid();
+        }
+
         pid = commandLine.getOptionValue("j", pid);
         if (pid == null) {
             pid = selectJvm();
@@ -90,43 +230,125 @@ public class Runner {
             }
         }
 
-        int interval = Integer.parseInt(commandLine.getOptionValue("i", "5")) * 1000;
+        List<String> pids = Arrays.asList(pid.split(","));
+        if (pid.equals("all")) {
+            pids = listJvms().stream()
+                .map(Runner::psPid)
+                .filter(other -> !other.equals(ownPid()))
+                .collect(Collectors.toList());
+            if (pids.isEmpty()) {
+                System.out.println("No JVMs detected.");
+                return;
+            }
+        }
+        if (commandLine.hasOption("budget") && pids.size() > 1) {
+            printHelp();
+            System.out.println();
+            System.out.println("ERROR: --budget can only be used with a single JVM.");
+            return;
+        }
+
+        long interval = (long)(Double.parseDouble(commandLine.getOptionValue("i", "5")) * 1000);
 
         Config config = new Config();
-        config.setPid(pid);
+        config.setPids(pids);
         config.setInterval(interval);
         config.parseFrameFilter(commandLine.getOptionValue("f", ""));
         config.parseNameRegex(commandLine.getOptionValue("n", ""));
+        config.parseStacksWindow(commandLine.getOptionValue("window", ""));
+        config.setOnCpuOnly(commandLine.hasOption("o"));
+        config.setSortByAllocation(commandLine.hasOption("a"));
         
-        try (Terminal terminal = TerminalBuilder
-            .builder()
-            .dumb(false)
-            .jna(true)
-            .build()) {
+        if (commandLine.hasOption("batch")) {
+            config.parseTopLimit(commandLine.getOptionValue("l", "20"));
+            config.parseCpuTimeCutoff(commandLine.getOptionValue("c", "0"));
+            BatchWriter.Format format = BatchWriter.Format.valueOf(commandLine.getOptionValue("batch").toUpperCase());
+            int frames = Integer.parseInt(commandLine.getOptionValue("frames", "0"));
 
-            ExecutorService executor = Executors.newFixedThreadPool(2);
-            try {
-                Printer current;
-                Printer other;
-                if (commandLine.hasOption("s")) {
-                    config.parseStacksLimitPercent(commandLine.getOptionValue("l", "5"));
-                    current = new StacksPrinter(config);
-                    other = new TopPrinter(config, (StacksPrinter)current);
+            String output = commandLine.getOptionValue("output");
+            OutputStream out = output == null ? System.out : new FileOutputStream(output);
+            try (Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), 64 * 1024)) {
+                BatchWriter batch = new BatchWriter(writer, format, frames);
+                if (recording != null) {
+                    try (Recording replay = recording) {
+                        batchRecording(replay, config, batch);
+                    }
                 } else {
-                    config.parseTopLimit(commandLine.getOptionValue("l", "20"));
-                    config.parseCpuTimeCutoff(commandLine.getOptionValue("c", "1"));
+                    try (Sampler sampler = createSampler(samplerType, config, commandLine)) {
+                        batch(sampler, config, batch, frames > 0);
+                    }
+                }
+            }
+            return;
+        }
 
-                    other = new StacksPrinter(config);
-                    current = new TopPrinter(config, (StacksPrinter)other);
+        if (commandLine.hasOption("export")) {
+            File file = new File(commandLine.getOptionValue("export"));
+            if (recording != null) {
+                try (Recording replay = recording) {
+                    exportRecording(replay, config, file);
+                }
+            } else {
+                try (Sampler sampler = createSampler(samplerType, config, commandLine)) {
+                    export(sampler, config, file);
                 }
+            }
+            return;
+        }
+
+        if (commandLine.hasOption("http")) {
+            config.parseTopLimit(commandLine.getOptionValue("l", "20"));
+            config.parseCpuTimeCutoff(commandLine.getOptionValue("c", "0"));
+            try (Sampler sampler = createSampler(samplerType, config, commandLine);
+                MetricsServer server = new MetricsServer(Integer.parseInt(commandLine.getOptionValue("http")))) {
+                serve(sampler, config, server);
+            }
+            return;
+        }
 
-                current.setActive(true);
-                other.setActive(false);
+        if (commandLine.hasOption("record")) {
+            try (Sampler sampler = createSampler(samplerType, config, commandLine)) {
+                record(sampler, config, new File(commandLine.getOptionValue("record")));
+            }
+            return;
+        }
 
-                config.setActive(current, other);
+        try (Sampler sampler = recording != null ? new ReplaySampler(recording) : createSampler(samplerType, config, commandLine);
+            Terminal terminal = TerminalBuilder
+                .builder()
+                .dumb(false)
+                .jna(true)
+                .build()) {
 
-                executor.submit(current);
-                executor.submit(other);
+            config.setSampler(sampler);
+
+            int active = 0;
+            if (commandLine.hasOption("s")) {
+                config.parseStacksLimitPercent(commandLine.getOptionValue("l", "5"));
+                active = 1;
+            } else {
+                config.parseTopLimit(commandLine.getOptionValue("l", "20"));
+                config.parseCpuTimeCutoff(commandLine.getOptionValue("c", "1"));
+                if (commandLine.hasOption("t")) {
+                    active = 2;
+                } else if (commandLine.hasOption("k")) {
+                    active = 3;
+                }
+            }
+
+            StacksPrinter stacks = new StacksPrinter(config);
+            if (commandLine.hasOption("baseline")) {
+                stacks.loadBaseline(new File(commandLine.getOptionValue("baseline")));
+            }
+            List<Printer> printers = Arrays.asList(new TopPrinter(config), stacks, new StatesPrinter(config), new LocksPrinter(config));
+            config.setPrinters(printers, active);
+
+            ExecutorService executor = Executors.newFixedThreadPool(printers.size() + 1);
+            try {
+                for (Printer printer : printers) {
+                    executor.submit(printer);
+                }
+                executor.submit(new SamplePipeline(config, printers));
 
                 DisplayLoop.run(config, terminal);
 
@@ -136,16 +358,190 @@ public class Runner {
         }
     }
 
+    private static void record(Sampler sampler, Config config, File file) throws IOException {
+        try (Recorder recorder = new Recorder(file, config.getPid())) {
+            System.out.println("Recording samples of " + config.getPid() + " to " + file + ", press Ctrl+C to stop.");
+            for (int samples = 1; ; samples++) {
+                long started = System.currentTimeMillis();
+                List<ThreadInfo> threads = sampler.sample();
+                recorder.write(started, threads);
+                System.out.print("\rRecorded sample " + samples + " (" + threads.size() + " threads)");
+
+                long remaining = config.getInterval() - (System.currentTimeMillis() - started);
+                if (remaining > 0) {
+                    Thread.sleep(remaining);
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void batch(Sampler sampler, Config config, BatchWriter batch, boolean frames) throws IOException {
+        try {
+            ThreadHistory history = new ThreadHistory();
+            history.add(System.currentTimeMillis(), frames ? sampler.sample() : sampler.sampleCpu());
+            while (true) {
+                Thread.sleep(config.getInterval());
+
+                long time = System.currentTimeMillis();
+                history.add(time, frames ? sampler.sample() : sampler.sampleCpu());
+                batch.write(time, config.getPid(), history.top(config));
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void batchRecording(Recording recording, Config config, BatchWriter batch) throws IOException {
+        if (recording.isEmpty()) {
+            return;
+        }
+        ThreadHistory history = new ThreadHistory();
+        history.add(recording.getTime(0), recording.read(0));
+        for (int sample = 1; recording.hasSample(sample); sample++) {
+            history.add(recording.getTime(sample), recording.read(sample));
+            batch.write(recording.getTime(sample), config.getPid(), history.top(config));
+        }
+    }
+
+    private static void export(Sampler sampler, Config config, File file) throws IOException {
+        StacksPrinter stacks = new StacksPrinter(config);
+        System.out.println("Exporting stacks of " + config.getPid() + " to " + file + ", press Ctrl+C to stop.");
+        try {
+            for (int samples = 1; ; samples++) {
+                long started = System.currentTimeMillis();
+                stacks.addSample(started, sampler.sample());
+                stacks.export(file);
+                System.out.print("\rExported " + samples + " samples");
+
+                long remaining = config.getInterval() - (System.currentTimeMillis() - started);
+                if (remaining > 0) {
+                    Thread.sleep(remaining);
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void serve(Sampler sampler, Config config, MetricsServer server) throws IOException {
+        ThreadHistory history = new ThreadHistory();
+        StacksPrinter stacks = new StacksPrinter(config);
+        System.out.println("Serving samples of " + config.getPid() + " on http://127.0.0.1:" + server.getPort() + "/metrics and /json, press Ctrl+C to stop.");
+        try {
+            for (int samples = 1; ; samples++) {
+                long started = System.currentTimeMillis();
+                List<ThreadInfo> threads = sampler.sample();
+                history.add(started, threads);
+                stacks.addSample(started, threads);
+                server.publish(new MetricsServer.Snapshot(started, config.getPid(), history.top(config),
+                    stacks.getSamples(), stacks.hotFrames(config.getTopLimit()),
+                    config.getStacksWindow() == 0 && config.getStacksHalfLife() == 0));
+                System.out.print("\rServed " + samples + " samples");
+
+                long remaining = config.getInterval() - (System.currentTimeMillis() - started);
+                if (remaining > 0) {
+                    Thread.sleep(remaining);
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void exportRecording(Recording recording, Config config, File file) throws IOException {
+        StacksPrinter stacks = new StacksPrinter(config);
+        int samples = 0;
+        while (recording.hasSample(samples)) {
+            stacks.addSample(recording.getTime(samples), recording.read(samples));
+            samples++;
+        }
+        stacks.export(file);
+        System.out.println("Exported " + samples + " samples to " + file);
+    }
+
+    /**
+     * Creates one sampler per JVM being tracked, sharing a small pool between them
+     * when there is more than one.
+     */
+    private static Sampler createSampler(String type, Config config, CommandLine commandLine) throws IOException {
+        List<String> pids = config.getPids();
+        if (pids.size() == 1) {
+            Sampler sampler = createSampler(type, pids.get(0), config, commandLine);
+            if (commandLine.hasOption("budget")) {
+                sampler = new AdaptiveSampler(config, sampler, Double.parseDouble(commandLine.getOptionValue("budget")) / 100);
+            }
+            return sampler;
+        }
+
+        List<Sampler> samplers = new ArrayList<>();
+        try {
+            for (String pid : pids) {
+                samplers.add(createSampler(type, pid, config, commandLine));
+            }
+        } catch (IOException | RuntimeException ex) {
+            for (Sampler sampler : samplers) {
+                sampler.close();
+            }
+            throw ex;
+        }
+        int threads = Math.min(pids.size(), Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+        return new MultiSampler(config, pids, samplers, threads);
+    }
+
+    private static Sampler createSampler(String type, String pid, Config config, CommandLine commandLine) throws IOException {
+        if (type.equals("jmx")) {
+            return new JmxSampler(pid, config);
+        }
+        Sampler sampler = new JstackSampler(pid, config);
+        if (commandLine.hasOption("p")) {
+            int refreshSamples = Integer.parseInt(commandLine.getOptionValue("p", "10"));
+            sampler = new ProcfsSampler(pid, sampler, refreshSamples);
+        }
+        return sampler;
+    }
+
+    private static boolean isPort(String value) {
+        return value.matches("[0-9]{1,5}") && Integer.parseInt(value) <= 65535;
+    }
+
+    private static boolean isAtLeast(String value, int min) {
+        return value.matches("[0-9]{1,9}") && Integer.parseInt(value) >= min;
+    }
+
+    private static boolean isBudget(String value) {
+        try {
+            double budget = Double.parseDouble(value);
+            return budget > 0 && budget <= 100;
+        } catch (NumberFormatException ex) {
+            return false;
+        }
+    }
+
     private static void printHelp() {
         HelpFormatter formatter = new HelpFormatter();
         formatter.printHelp("jtop [pid] [args ...]", options );
     }
 
+    private static List<String> listJvms() throws IOException {
+        return Executor.execute("ps", "-fC", "java", "--no-headers");
+    }
+
+    private static String psPid(String line) {
+        return line.trim().split("\\s+")[1];
+    }
+
+    private static String ownPid() {
+        String name = ManagementFactory.getRuntimeMXBean().getName();
+        return name.substring(0, name.indexOf('@'));
+    }
+
     private static String selectJvm() throws IOException {
-        List<String> jvms = Executor.execute("ps", "-fC", "java", "--no-headers");
+        List<String> jvms = listJvms();
 
         List<String> pids = jvms.stream()
-            .map(line -> line.split("\\s+")[1])
+            .map(Runner::psPid)
             .collect(Collectors.toList());
 
         if (pids.size() == 0) {
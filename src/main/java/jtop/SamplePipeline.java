@@ -0,0 +1,87 @@
+package jtop;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Takes every sample on one thread at a fixed rate and hands it to the bounded
+ * queue of each printer, which aggregates and renders it on its own thread. A
+ * printer that falls behind loses its oldest samples instead of holding up the
+ * next one, so the interval stays the same however slow a view is.
+ */
+public class SamplePipeline implements Runnable {
+
+    private final Config config;
+    private final List<Printer> printers;
+
+    public SamplePipeline(Config config, List<Printer> printers) {
+        this.config = config;
+        this.printers = printers;
+    }
+
+    @Override
+    public void run() {
+        long next = System.currentTimeMillis();
+        while (true) {
+            try {
+                sample(System.currentTimeMillis());
+            } catch (Throwable ex) {
+                for (Printer printer : printers) {
+                    printer.showError(ex);
+                }
+            }
+
+            // after falling more than an interval behind, skip ahead instead of catching up
+            long now = System.currentTimeMillis();
+            next = Math.max(next + config.getInterval(), now);
+            try {
+                Thread.sleep(next - now);
+            } catch (InterruptedException ex) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Takes one sample and queues it for every printer.
+     */
+    void sample(long time) throws IOException {
+        // the cpu view only needs cpu times, which some samplers get much cheaper
+        Sampler sampler = config.getSampler();
+        boolean stacks = config.getActive().needsStacks();
+        List<ThreadInfo> threads = stacks ? sampler.sample() : sampler.sampleCpu();
+        Sample sample = new Sample(time, threads, stacks || sampler.cpuSamplesHaveStacks());
+        for (Printer printer : printers) {
+            printer.offer(sample);
+        }
+    }
+
+    /**
+     * The threads of one sample and when it was taken, shared by all printers.
+     */
+    public static class Sample {
+        private final long time;
+        private final List<ThreadInfo> threads;
+        private final boolean full;
+
+        /**
+         * @param full whether the sample has the stack, state and locks of every
+         * thread, or only what {@link Sampler#sampleCpu()} returns
+         */
+        public Sample(long time, List<ThreadInfo> threads, boolean full) {
+            this.time = time;
+            this.threads = threads;
+            this.full = full;
+        }
+
+        public long getTime() {
+            return time;
+        }
+        public List<ThreadInfo> getThreads() {
+            return threads;
+        }
+        public boolean isFull() {
+            return full;
+        }
+    }
+}
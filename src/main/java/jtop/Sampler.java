@@ -0,0 +1,41 @@
+package jtop;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Source of thread samples for the printers. Implementations may hold on to
+ * resources (such as a connection to the target JVM) between samples and must
+ * be safe to call from more than one printer thread.
+ */
+public interface Sampler extends Closeable {
+
+    public List<ThreadInfo> sample() throws IOException;
+
+    /**
+     * Samples what the cpu view needs. Cpu times must be current, but frames may
+     * be left empty (or be from an earlier sample) if that makes sampling cheaper.
+     */
+    public default List<ThreadInfo> sampleCpu() throws IOException {
+        return sample();
+    }
+
+    /**
+     * @return whether {@link #sampleCpu()} returns the stack, state and locks of
+     * every thread all the same, as {@link #sample()} does
+     */
+    public default boolean cpuSamplesHaveStacks() {
+        return true;
+    }
+
+    /**
+     * @return a short description of the sampler's state for the status line, or null
+     */
+    public default String getStatus() {
+        return null;
+    }
+
+    @Override
+    public default void close() throws IOException { }
+}
@@ -0,0 +1,132 @@
+package jtop;
+
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Remembers what is on the terminal so a new frame only rewrites the rows that
+ * changed, and within a row only what follows the unchanged start of the line.
+ * When the lines just moved up or down, the terminal is told to scroll them
+ * instead. A whole frame is written to the terminal in one write and one flush,
+ * which keeps scrolling and refreshing cheap and flicker free over slow links.
+ */
+public class ScreenBuffer {
+
+    private final PrintWriter writer;
+    private final StringBuilder builder = new StringBuilder(16 * 1024);
+    private String[] screen = new String[0];
+    private boolean invalid = true;
+
+    public ScreenBuffer(PrintWriter writer) {
+        this.writer = writer;
+    }
+
+    /**
+     * Forgets what is on the screen, so the next frame clears it and is written in
+     * full. Needed whenever something else has written to the terminal.
+     */
+    public void invalidate() {
+        invalid = true;
+    }
+
+    /**
+     * Draws the lines from the top of the screen with the status line below them,
+     * and leaves the cursor at the start of the row below that.
+     */
+    public void render(List<String> lines, String status) {
+        builder.setLength(0);
+        int rows = lines.size();
+        if (invalid || rows + 1 != screen.length) {
+            builder.append("\033[H\033[J");
+            screen = new String[rows + 1];
+            invalid = false;
+        } else {
+            scroll(lines);
+        }
+
+        for (int row = 0; row < rows; row++) {
+            draw(row, lines.get(row));
+        }
+        draw(rows, status);
+        builder.append("\033[").append(rows + 2).append(";1H");
+
+        writer.append(builder);
+        writer.flush();
+    }
+
+    private void draw(int row, String line) {
+        String old = screen[row];
+        if (line.equals(old)) {
+            return;
+        }
+
+        int column = old == null ? 0 : unchangedColumns(old, line);
+        builder.append("\033[").append(row + 1).append(';').append(column + 1).append('H');
+        builder.append(line, column, line.length());
+        if (old != null && old.length() > line.length()) {
+            builder.append("\033[K");
+        }
+        screen[row] = line;
+    }
+
+    /**
+     * Scrolls the lines region of the screen if the new lines are the old ones
+     * moved up or down by less than half the screen, leaving only the rows that
+     * scrolled into view to be drawn.
+     */
+    private void scroll(List<String> lines) {
+        int rows = lines.size();
+        if (rows == 0 || shifted(lines, 0)) {
+            return;
+        }
+        for (int shift = 1; shift < rows / 2; shift++) {
+            if (shifted(lines, shift)) {
+                builder.append("\033[1;").append(rows).append('r');
+                builder.append("\033[").append(shift).append('S');
+                builder.append("\033[r");
+                System.arraycopy(screen, shift, screen, 0, rows - shift);
+                Arrays.fill(screen, rows - shift, rows, "");
+                return;
+            } else if (shifted(lines, -shift)) {
+                builder.append("\033[1;").append(rows).append('r');
+                builder.append("\033[").append(shift).append('T');
+                builder.append("\033[r");
+                System.arraycopy(screen, 0, screen, shift, rows - shift);
+                Arrays.fill(screen, 0, shift, "");
+                return;
+            }
+        }
+    }
+
+    /**
+     * Whether lines[row] equals screen[row + shift] for every row both have. The
+     * first and last pair are checked first, as they rule out most shifts.
+     */
+    private boolean shifted(List<String> lines, int shift) {
+        int from = Math.max(0, -shift);
+        int to = Math.min(lines.size(), lines.size() - shift);
+        if (!lines.get(from).equals(screen[from + shift]) || !lines.get(to - 1).equals(screen[to - 1 + shift])) {
+            return false;
+        }
+        for (int row = from + 1; row < to - 1; row++) {
+            if (!lines.get(row).equals(screen[row + shift])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The number of leading characters the lines have in common. Only counts ascii
+     * characters, as those are the ones known to take up exactly one column.
+     */
+    private static int unchangedColumns(String old, String line) {
+        int max = Math.min(old.length(), line.length());
+        int i = 0;
+        while (i < max && old.charAt(i) == line.charAt(i) && line.charAt(i) < 0x7F) {
+            i++;
+        }
+        return i;
+    }
+}
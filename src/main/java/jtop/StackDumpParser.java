@@ -0,0 +1,469 @@
+package jtop;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.Consumer;
+
+/**
+ * Parses jstack output straight from a byte stream, one line at a time, without
+ * building an intermediate list of lines. Frames are interned straight from the
+ * bytes, so only thread names, ids and never before seen frames are decoded.
+ */
+public class StackDumpParser {
+
+    private static final byte[] TID = ascii("tid=");
+    private static final byte[] OS_PRIO = ascii("os_prio=");
+    private static final byte[] CPU = ascii("cpu=");
+    private static final byte[] NID = ascii("nid=0x");
+    private static final byte[] AT = ascii("at ");
+    private static final byte[] STATE = ascii("java.lang.Thread.State:");
+    private static final byte[] LOCKED = ascii("- locked ");
+    private static final byte[] WAITING_TO_LOCK = ascii("- waiting to lock ");
+    private static final byte[] WAITING_TO_RELOCK = ascii("- waiting to re-lock in wait() ");
+    private static final byte[] PARKING = ascii("- parking to wait for ");
+    private static final byte[] WAITING_ON = ascii("- waiting on ");
+    private static final byte[] CLASS = ascii("(a ");
+    private static final byte[] SYNCHRONIZERS = ascii("Locked ownable synchronizers:");
+    /** Dumps are parsed in parts of about this many bytes, in parallel. */
+    private static final int CHUNK = 256 * 1024;
+    private static final byte[][] STATE_NAMES = Arrays.stream(Thread.State.values())
+        .map(state -> ascii(state.name()))
+        .toArray(byte[][]::new);
+
+    private final String pid;
+    private final Consumer<ThreadInfo> consumer;
+    private byte[] buffer = new byte[64 * 1024];
+    private byte[] scratch = new byte[256];
+
+    private String id;
+    private long nativeId;
+    private String name;
+    private Thread.State state;
+    private double cpuTime;
+    private int[] frames = new int[64];
+    private int frameCount = -1;
+    private int lastFrame = -1;
+    /** Whether the lines are in the "Locked ownable synchronizers:" list of jstack -l. */
+    private boolean synchronizers;
+    private final List<ThreadLock> locks = new ArrayList<>();
+
+    public StackDumpParser(String pid, Consumer<ThreadInfo> consumer) {
+        this.pid = pid;
+        this.consumer = consumer;
+    }
+
+    /**
+     * Cuts the dump at the first thread header past every CHUNK bytes while reading
+     * it, and parses each part on the fork/join pool as soon as it is read. Every
+     * part ends where the next one's first thread starts, so its parser sees
+     * exactly the lines one parser of the whole dump would.
+     * @return the threads of the dump, in the order they are in it
+     */
+    public static List<ThreadInfo> parse(String pid, InputStream in) throws IOException {
+        List<ForkJoinTask<List<ThreadInfo>>> parts = new ArrayList<>();
+        byte[] b = new byte[CHUNK * 2];
+        int length = 0;
+        int scan = CHUNK;
+        while (true) {
+            if (length == b.length) {
+                b = Arrays.copyOf(b, b.length * 2);
+            }
+            int read = in.read(b, length, b.length - length);
+            if (read < 0) {
+                break;
+            }
+            length += read;
+            if (length <= scan) {
+                continue;
+            }
+
+            // a thread name can have quotes in it, and a header can still be coming
+            // in, so only whole lines from a line start on tell where one is
+            int first = indexOf(b, scan - 1, length, '\n') + 1;
+            int lines = lastIndexOf(b, scan, length, '\n') + 1;
+            if (first == 0 || first >= lines) {
+                continue;
+            }
+            int split = nextHeader(b, first, lines);
+            if (split < 0) {
+                scan = lines;
+                continue;
+            }
+            byte[] part = b;
+            parts.add(ForkJoinTask.adapt(() -> parse(pid, part, 0, split)).fork());
+            b = new byte[Math.max(CHUNK * 2, length - split)];
+            System.arraycopy(part, split, b, 0, length - split);
+            length -= split;
+            scan = CHUNK;
+        }
+
+        List<ThreadInfo> last = parse(pid, b, 0, length);
+        if (parts.isEmpty()) {
+            return last;
+        }
+        List<ThreadInfo> threads = new ArrayList<>();
+        for (ForkJoinTask<List<ThreadInfo>> part : parts) {
+            threads.addAll(part.join());
+        }
+        threads.addAll(last);
+        return threads;
+    }
+
+    private static List<ThreadInfo> parse(String pid, byte[] b, int from, int to) {
+        List<ThreadInfo> threads = new ArrayList<>();
+        new StackDumpParser(pid, threads::add).read(b, from, to);
+        return threads;
+    }
+
+    /**
+     * Parses the lines of b[from, to) and finishes the last thread.
+     */
+    public void read(byte[] b, int from, int to) {
+        int start = from;
+        for (int i = from; i < to; i++) {
+            if (b[i] == '\n') {
+                line(b, start, i);
+                start = i + 1;
+            }
+        }
+        if (start < to) {
+            line(b, start, to);
+        }
+        finish();
+    }
+
+    public void read(InputStream in) throws IOException {
+        int start = 0;
+        int limit = 0;
+        while (true) {
+            if (limit == buffer.length) {
+                if (start > 0) {
+                    System.arraycopy(buffer, start, buffer, 0, limit - start);
+                    limit -= start;
+                    start = 0;
+                } else {
+                    byte[] grown = new byte[buffer.length * 2];
+                    System.arraycopy(buffer, 0, grown, 0, limit);
+                    buffer = grown;
+                }
+            }
+
+            int read = in.read(buffer, limit, buffer.length - limit);
+            if (read < 0) {
+                break;
+            }
+
+            int scan = limit;
+            limit += read;
+            for (int i = scan; i < limit; i++) {
+                if (buffer[i] == '\n') {
+                    line(buffer, start, i);
+                    start = i + 1;
+                }
+            }
+            if (start == limit) {
+                start = 0;
+                limit = 0;
+            }
+        }
+        if (start < limit) {
+            line(buffer, start, limit);
+        }
+        finish();
+    }
+
+    private void line(byte[] b, int from, int to) {
+        while (from < to && isSpace(b[from])) {
+            from++;
+        }
+        while (to > from && isSpace(b[to - 1])) {
+            to--;
+        }
+        if (from == to) {
+            return;
+        }
+
+        int tid = headerTid(b, from, to);
+        if (tid > 0) {
+            header(b, from, to, tid);
+            return;
+        }
+        if (frameCount < 0) {
+            return;
+        } else if (startsWith(b, from, to, STATE)) {
+            state = state(b, from + STATE.length, to);
+        } else if (startsWith(b, from, to, AT)) {
+            lastFrame = FrameDictionary.intern(b, from + 3, to - from - 3);
+            addFrame(lastFrame);
+        } else if (startsWith(b, from, to, SYNCHRONIZERS)) {
+            synchronizers = true;
+        } else if (b[from] == '-' && from + 1 < to && b[from + 1] == ' ') {
+            if (synchronizers) {
+                synchronizer(b, from, to);
+            } else {
+                addFrame(lockLine(b, from, to));
+            }
+        }
+    }
+
+    /**
+     * @return where "tid=" is if the trimmed line is a thread header, else -1
+     */
+    private static int headerTid(byte[] b, int from, int to) {
+        return b[from] == '"' ? indexOf(b, from, to, TID) : -1;
+    }
+
+    /**
+     * @return the start of the first line from the line starting at from on that
+     * is a thread header, or -1 if there is none before to
+     */
+    private static int nextHeader(byte[] b, int from, int to) {
+        while (from < to) {
+            int end = indexOf(b, from, to, '\n');
+            if (end < 0) {
+                end = to;
+            }
+            int first = from;
+            while (first < end && isSpace(b[first])) {
+                first++;
+            }
+            if (first < end && headerTid(b, first, end) > 0) {
+                return from;
+            }
+            from = end + 1;
+        }
+        return -1;
+    }
+
+    private void addFrame(int frame) {
+        if (frameCount == frames.length) {
+            frames = Arrays.copyOf(frames, frameCount * 2);
+        }
+        frames[frameCount++] = frame;
+    }
+
+    private void header(byte[] b, int from, int to, int tid) {
+        finish();
+
+        int osPrio = lastIndexOf(b, from, tid, OS_PRIO);
+        int nameEnd = lastIndexOf(b, from + 1, osPrio > 0 ? osPrio : tid, '"');
+        if (nameEnd < 0) {
+            nameEnd = tid;
+        }
+        name = new String(b, from + 1, nameEnd - from - 1, StandardCharsets.UTF_8);
+
+        cpuTime = 0;
+        int cpu = indexOf(b, nameEnd, to, CPU);
+        if (cpu > 0) {
+            cpuTime = parseDecimal(b, cpu + CPU.length, to);
+        }
+
+        int idStart = tid + TID.length;
+        int idEnd = idStart;
+        while (idEnd < to && b[idEnd] != ' ') {
+            idEnd++;
+        }
+        id = new String(b, idStart, idEnd - idStart, StandardCharsets.US_ASCII);
+
+        state = null;
+        nativeId = -1;
+        int nid = indexOf(b, idEnd, to, NID);
+        if (nid > 0) {
+            nativeId = parseHex(b, nid + NID.length, to);
+        }
+        frameCount = 0;
+        lastFrame = -1;
+        synchronizers = false;
+        locks.clear();
+    }
+
+    private void finish() {
+        if (frameCount >= 0) {
+            ThreadLock[] threadLocks = locks.isEmpty() ? ThreadLock.NONE : locks.toArray(new ThreadLock[locks.size()]);
+            consumer.accept(new ThreadInfo(pid, id, nativeId, name, state, cpuTime, Arrays.copyOf(frames, frameCount), threadLocks));
+            frameCount = -1;
+        }
+    }
+
+    /**
+     * Interns a "- locked &lt;0x...&gt; (a ...)" line with the monitor address removed so
+     * that the same lock site always produces the same frame. The address is kept
+     * in the thread's locks instead.
+     */
+    private int lockLine(byte[] b, int from, int to) {
+        int refOpen = indexOf(b, from, to, '<');
+        int refClose = refOpen < 0 ? -1 : indexOf(b, refOpen, to, '>');
+        if (refClose < 0) {
+            return FrameDictionary.intern(b, from, to - from);
+        }
+        lock(b, from, to, refOpen, refClose);
+        int head = refOpen + 1 - from;
+        int tail = to - refClose;
+        if (scratch.length < head + tail) {
+            scratch = new byte[head + tail];
+        }
+        System.arraycopy(b, from, scratch, 0, head);
+        System.arraycopy(b, refClose, scratch, head, tail);
+        return FrameDictionary.intern(scratch, 0, head + tail);
+    }
+
+    /**
+     * Adds a "- &lt;0x...&gt; (a ...)" line of the "Locked ownable synchronizers:" list to
+     * the thread's locks as held, without a frame. "- None" has no address and is skipped.
+     */
+    private void synchronizer(byte[] b, int from, int to) {
+        int refOpen = indexOf(b, from, to, '<');
+        int refClose = refOpen < 0 ? -1 : indexOf(b, refOpen, to, '>');
+        if (refClose > 0) {
+            lock(ThreadLock.Kind.LOCKED, b, to, refOpen, refClose, -1);
+        }
+    }
+
+    private void lock(byte[] b, int from, int to, int refOpen, int refClose) {
+        ThreadLock.Kind kind;
+        if (startsWith(b, from, to, LOCKED)) {
+            kind = ThreadLock.Kind.LOCKED;
+        } else if (startsWith(b, from, to, WAITING_TO_LOCK) || startsWith(b, from, to, WAITING_TO_RELOCK)) {
+            kind = ThreadLock.Kind.WAITING_TO_LOCK;
+        } else if (startsWith(b, from, to, PARKING)) {
+            kind = ThreadLock.Kind.PARKING;
+        } else if (startsWith(b, from, to, WAITING_ON)) {
+            kind = ThreadLock.Kind.WAITING_ON;
+        } else {
+            return;
+        }
+        lock(kind, b, to, refOpen, refClose, lastFrame);
+    }
+
+    private void lock(ThreadLock.Kind kind, byte[] b, int to, int refOpen, int refClose, int frame) {
+        if (refClose - refOpen < 3 || b[refOpen + 1] != '0' || b[refOpen + 2] != 'x') {
+            return;
+        }
+        long address = parseHex(b, refOpen + 3, refClose);
+
+        int className = -1;
+        int classStart = indexOf(b, refClose, to, CLASS);
+        if (classStart > 0) {
+            classStart += CLASS.length;
+            int classEnd = indexOf(b, classStart, to, ')');
+            className = FrameDictionary.intern(b, classStart, (classEnd < 0 ? to : classEnd) - classStart);
+        }
+        locks.add(new ThreadLock(kind, address, className, frame));
+    }
+
+    /**
+     * Reads the state word of a "java.lang.Thread.State: WAITING (parking)" line.
+     */
+    private static Thread.State state(byte[] b, int from, int to) {
+        while (from < to && b[from] == ' ') {
+            from++;
+        }
+        int end = from;
+        while (end < to && b[end] != ' ') {
+            end++;
+        }
+        Thread.State[] states = Thread.State.values();
+        for (int i = 0; i < states.length; i++) {
+            if (end - from == STATE_NAMES[i].length && startsWith(b, from, end, STATE_NAMES[i])) {
+                return states[i];
+            }
+        }
+        return null;
+    }
+
+    private static double parseDecimal(byte[] b, int from, int to) {
+        long whole = 0;
+        long fraction = 0;
+        long scale = 1;
+        boolean decimals = false;
+        for (int i = from; i < to; i++) {
+            byte c = b[i];
+            if (c >= '0' && c <= '9') {
+                if (decimals) {
+                    fraction = fraction * 10 + (c - '0');
+                    scale *= 10;
+                } else {
+                    whole = whole * 10 + (c - '0');
+                }
+            } else if (c == '.' && !decimals) {
+                decimals = true;
+            } else {
+                break;
+            }
+        }
+        return whole + (double)fraction / (double)scale;
+    }
+
+    private static long parseHex(byte[] b, int from, int to) {
+        long value = 0;
+        for (int i = from; i < to; i++) {
+            int digit = Character.digit(b[i], 16);
+            if (digit < 0) {
+                break;
+            }
+            value = (value << 4) | digit;
+        }
+        return value;
+    }
+
+    private static boolean isSpace(byte c) {
+        return c == ' ' || c == '\t' || c == '\r';
+    }
+
+    private static boolean startsWith(byte[] b, int from, int to, byte[] prefix) {
+        if (to - from < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (b[from + i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int indexOf(byte[] b, int from, int to, int c) {
+        for (int i = from; i < to; i++) {
+            if (b[i] == c) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int indexOf(byte[] b, int from, int to, byte[] needle) {
+        for (int i = from; i <= to - needle.length; i++) {
+            if (startsWith(b, i, to, needle)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int lastIndexOf(byte[] b, int from, int to, int c) {
+        for (int i = to - 1; i >= from; i--) {
+            if (b[i] == c) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int lastIndexOf(byte[] b, int from, int to, byte[] needle) {
+        for (int i = to - needle.length; i >= from; i--) {
+            if (startsWith(b, i, to, needle)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static byte[] ascii(String str) {
+        return str.getBytes(StandardCharsets.US_ASCII);
+    }
+}
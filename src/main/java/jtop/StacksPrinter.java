@@ -1,18 +1,47 @@
 package jtop;
 
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.AbstractList;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.NavigableSet;
-import java.util.TreeSet;
 
 public class StacksPrinter extends Printer {
 
-    private volatile int samples = 0;
+    private final Map<String, Integer> jvmFrames = new HashMap<>();
+    private final ArrayDeque<Node[]> window = new ArrayDeque<>();
+    private static final Node[] NO_NODES = new Node[0];
+    private static final int METHODS = 20;
+    private final View view = new View(false);
+    private final View invertedView = new View(true);
+    private volatile double samples = 0;
+    private double weight = 1;
+    private long lastTime = -1;
     private volatile Node root;
+    private volatile Node invertedRoot;
+    private double[] selfCounts = new double[0];
+    private double[] totalCounts = new double[0];
+    private int[] stamps = new int[0];
+    private int stamp;
+    private volatile boolean inverted;
+    private int generation;
+    private volatile Node baseline;
+    private double baselineSamples;
+    private long baselineCount;
 
     public StacksPrinter(Config config) throws IOException {
         super(config);
@@ -21,7 +50,14 @@ public class StacksPrinter extends Printer {
 
     private void newRoot() {
         samples = 0;
-        root = new Node("root - PID: " + config.getPid());
+        weight = 1;
+        lastTime = -1;
+        window.clear();
+        root = new Node(-1, null);
+        invertedRoot = new Node(-1, null);
+        Arrays.fill(selfCounts, 0);
+        Arrays.fill(totalCounts, 0);
+        generation++;
     }
 
     @Override
@@ -29,6 +65,12 @@ public class StacksPrinter extends Printer {
         Map<Character, PrinterCommandHandler> handlers = super.createHandlers();
         handlers.put('l', this::setLimitPercentage);
         handlers.put('r', this::resetStats);
+        handlers.put('e', this::export);
+        handlers.put('w', this::setWindow);
+        handlers.put('o', this::toggleOnCpu);
+        handlers.put('x', this::toggleExpanded);
+        handlers.put('b', this::toggleBaseline);
+        handlers.put('v', this::toggleInverted);
         return handlers;
     }
 
@@ -42,9 +84,139 @@ public class StacksPrinter extends Printer {
         System.out.println("\rStack stats successfully reset.");
     }
 
+    private void setWindow(TerminalLineReader reader) throws IOException {
+        config.parseStacksWindow(reader.readLine("Enter window (samples, or a half-life like 30s or 5m, empty for all): "));
+        synchronized (this) {
+            newRoot();
+        }
+        System.out.println("\rStacks window is now: " + config.getStacksWindowString());
+    }
+
+    private synchronized void toggleOnCpu(TerminalLineReader reader) {
+        config.setOnCpuOnly(!config.isOnCpuOnly());
+        newRoot();
+        System.out.println("\rStacks now count " + (config.isOnCpuOnly() ? "only RUNNABLE threads." : "all threads."));
+    }
+
+    /**
+     * Collapses the node on the top row of the screen if it is expanded and expands
+     * it otherwise, until the stats are reset. The diff against a baseline expands
+     * frames by the limit alone, so there is nothing to toggle while comparing.
+     */
+    private synchronized void toggleExpanded(TerminalLineReader reader) {
+        if (baseline != null) {
+            System.out.println("\rStacks can't be expanded or collapsed while compared to a baseline.");
+            return;
+        }
+        Node node = (inverted ? invertedView : view).nodeAtLine(firstRow);
+        if (node != null) {
+            node.toggled = !node.toggled;
+            generation++;
+        }
+    }
+
+    /**
+     * Switches to the callees first trie, built from the stacks counted so far and
+     * then kept up to date with every sample until switched back.
+     */
+    private synchronized void toggleInverted(TerminalLineReader reader) {
+        inverted = !inverted;
+        if (inverted) {
+            buildInverted();
+            invertedView.header = renderMethods();
+        } else {
+            invertedRoot = new Node(-1, null);
+        }
+        this.output = inverted ? invertedView : view;
+        System.out.println("\rStacks are now shown " + (inverted ? "callees first, under the hottest methods." : "callers first."));
+    }
+
+    /**
+     * Makes the stacks counted so far the baseline and starts counting again, or
+     * drops the baseline if there is one.
+     */
+    private synchronized void toggleBaseline(TerminalLineReader reader) {
+        if (baseline == null) {
+            baseline = root;
+            baselineSamples = samples;
+            baselineCount = Math.round(samples / weight);
+            newRoot();
+            System.out.println("\rStacks are now compared to a baseline of " + baselineCount + " samples.");
+        } else {
+            baseline = null;
+            System.out.println("\rStacks baseline removed.");
+        }
+    }
+
+    /**
+     * Loads folded stacks, as written by {@link #export(File)}, as the baseline to
+     * compare the stacks to.
+     */
+    public synchronized void loadBaseline(File file) throws IOException {
+        Node baseline = new Node(-1, null);
+        double samples = 0;
+        for (String line : Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)) {
+            int space = line.lastIndexOf(' ');
+            if (space <= 0) {
+                continue;
+            }
+            int count;
+            try {
+                count = Integer.parseInt(line.substring(space + 1).trim());
+            } catch (NumberFormatException ex) {
+                throw new IOException("Invalid folded stacks line: " + line);
+            }
+            Node node = baseline;
+            node.count += count;
+            for (String frame : line.substring(0, space).split(";")) {
+                node = node.getOrAddChild(FrameDictionary.intern(frame));
+                node.count += count;
+            }
+            samples += count;
+        }
+        this.baseline = baseline;
+        this.baselineSamples = samples;
+        this.baselineCount = Math.round(samples);
+    }
+
+    private void export(TerminalLineReader reader) throws IOException {
+        String file = reader.readLine("Enter export file (.svg/.html for a flame graph, otherwise folded stacks): ").trim();
+        if (file.isEmpty()) {
+            return;
+        }
+        export(new File(file));
+        System.out.println("\rStacks exported to: " + file);
+    }
+
+    /**
+     * Writes the stacks collected so far to the file, as a flame graph if it ends
+     * in .svg or .html and as folded stacks otherwise. The file is replaced
+     * atomically, so it can be re-exported while something else reads it.
+     */
+    public synchronized void export(File file) throws IOException {
+        File temp = new File(file.getAbsoluteFile().getParentFile(), "." + file.getName() + ".tmp");
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(temp), StandardCharsets.UTF_8))) {
+            String name = file.getName().toLowerCase();
+            if (name.endsWith(".svg")) {
+                FlameGraph.writeSvg(root, writer);
+            } else if (name.endsWith(".html") || name.endsWith(".htm")) {
+                FlameGraph.writeHtml(root, writer);
+            } else {
+                FlameGraph.writeFolded(root, writer);
+            }
+        }
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
     @Override
     protected String getCommandsString() {
-        String commands = "Cmds: (i)nterval | (l)imit | (r)eset | (n)ame filter:";
+        String commands = "Cmds: (i)nterval | (l)imit | (r)eset | (e)xport | e(x)pand top | (b)aseline:";
+        commands += baseline != null ? "+" : "-";
+        commands += " | in(v)ert:";
+        commands += inverted ? "+" : "-";
+        commands += " | (w)indow:" + config.getStacksWindowString() + " | (o)n-cpu:";
+        commands += config.isOnCpuOnly() ? "+" : "-";
+        commands += " | (n)ame filter:";
         commands += config.hasNameRegex() ? "+" : "-";
         commands += " | (f)rame filter:";
         commands += config.hasFrameFilter() ? "+" : "-";
@@ -54,106 +226,794 @@ public class StacksPrinter extends Printer {
 
     @Override
     protected void runLoop() throws IOException, InterruptedException {
-        synchronized (this) {
-            if (active) {
-                addSample(Executor.sampleJvm(config.getPid()));
+        // while the cpu view is displayed, samples may only have some of the stacks
+        SamplePipeline.Sample sample = nextSample();
+        if (!sample.isFull()) {
+            return;
+        }
+        addSample(sample.getTime(), sample.getThreads());
+        if (baseline != null) {
+            this.output = renderDiff();
+        } else if (inverted) {
+            invertedView.header = renderMethods();
+            this.output = invertedView;
+        } else {
+            this.output = view;
+        }
+    }
+
+    /**
+     * @return the stacks trie as displayed, one line per frame
+     */
+    List<String> render() {
+        return view.lines(0, Integer.MAX_VALUE);
+    }
+
+    /**
+     * @return the table of the methods most often innermost, with how often they
+     * were anywhere in the stack, as shown above the inverted trie
+     */
+    synchronized List<String> renderMethods() {
+        int[] top = new int[METHODS];
+        int count = 0;
+        for (int frame = 0; frame < selfCounts.length; frame++) {
+            double self = selfCounts[frame];
+            if (self <= 0 || (count == METHODS && self <= selfCounts[top[count - 1]])) {
+                continue;
+            }
+            // insertion into the short sorted list of the hottest so far
+            int i = count < METHODS ? count++ : count - 1;
+            for (; i > 0 && selfCounts[top[i - 1]] < self; i--) {
+                top[i] = top[i - 1];
             }
+            top[i] = frame;
+        }
 
-            List<String> output = new ArrayList<>();
-            if (samples > 0) {
-                root.print("", new StringBuilder(), output);
-            } else {
-                output.add("root - PID: " + config.getPid() + " - no results");
+        List<String> output = new ArrayList<>(count + 3);
+        output.add("SELF      TOTAL     METHOD - PID: " + config.getPid());
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            builder.setLength(0);
+            pad(builder, format.format(selfCounts[top[i]] / samples * 100) + " %", 10);
+            pad(builder, format.format(totalCounts[top[i]] / samples * 100) + " %", 10);
+            builder.append(FrameDictionary.get(top[i]));
+            output.add(builder.toString());
+        }
+        if (count == 0) {
+            output.add("<no results>");
+        }
+        output.add("");
+        return output;
+    }
+
+    private static void pad(StringBuilder builder, String str, int to) {
+        builder.append(str);
+        for (int i = str.length(); i < to; i++) {
+            builder.append(' ');
+        }
+    }
+
+    /**
+     * @return the lines of the trie from the row on, at most count of them
+     */
+    List<String> render(int row, int count) {
+        return view.lines(row, count);
+    }
+
+    /**
+     * @return the stacks and the baseline as one trie, one line per frame in
+     * either, with the change in the share of samples that passed through it.
+     * Siblings are sorted by how much their share changed, either way.
+     */
+    synchronized List<String> renderDiff() {
+        List<String> output = new ArrayList<>();
+        if (samples <= 0) {
+            output.add("root - PID: " + config.getPid() + " - no results since the baseline");
+            return output;
+        }
+        diff(root, baseline, 0, new StringBuilder(), output);
+        return output;
+    }
+
+    /**
+     * Walks the stacks and the baseline together, looking up the baseline's
+     * children by frame rather than copying either trie.
+     */
+    private void diff(Node current, Node base, int depth, StringBuilder builder, List<String> output) {
+        double share = current == null ? 0 : current.count / samples;
+        double baseShare = base == null ? 0 : base.count / baselineSamples;
+
+        builder.setLength(0);
+        for (int i = 0; i < depth; i++) {
+            builder.append("|  ");
+        }
+        if (depth == 0) {
+            builder.append("root - PID: ").append(config.getPid()).append(" - ").append(Math.round(samples / weight));
+            builder.append(" samples vs a baseline of ").append(baselineCount).append(" samples");
+        } else {
+            builder.append(current != null ? current.getFrame() : base.getFrame());
+            builder.append(" - ").append(format.format(share * 100)).append(" % (was ");
+            builder.append(format.format(baseShare * 100)).append(" %, ");
+            builder.append(share >= baseShare ? "+" : "").append(format.format((share - baseShare) * 100)).append(')');
+        }
+        output.add(builder.toString());
+
+        if (Math.max(share, baseShare) <= config.getStacksLimitPercent()) {
+            return;
+        }
+        List<Node[]> children = new ArrayList<>();
+        if (current != null) {
+            for (Node child : current.childNodes) {
+                if (child != null && child.count > 0) {
+                    children.add(new Node[] { child, base == null ? null : base.child(child.frame) });
+                }
+            }
+        }
+        if (base != null) {
+            for (Node child : base.childNodes) {
+                if (child != null && child.count > 0) {
+                    Node match = current == null ? null : current.child(child.frame);
+                    if (match == null || match.count <= 0) {
+                        children.add(new Node[] { null, child });
+                    }
+                }
             }
-            this.output = output;
         }
+        children.sort((a, b) -> {
+            int diff = Double.compare(Math.abs(change(b)), Math.abs(change(a)));
+            if (diff != 0) {
+                return diff;
+            }
+            return (a[0] != null ? a[0] : a[1]).getFrame().compareTo((b[0] != null ? b[0] : b[1]).getFrame());
+        });
+        for (Node[] child : children) {
+            diff(child[0], child[1], depth + 1, builder, output);
+        }
+    }
 
-        Thread.sleep(config.getInterval());
+    private double change(Node[] pair) {
+        return (pair[0] == null ? 0 : pair[0].count / samples) - (pair[1] == null ? 0 : pair[1].count / baselineSamples);
     }
 
-    public synchronized void addSample(Collection<ThreadInfo> threads) {
+    @Override
+    public List<String> getLines(int first, int count) {
+        List<String> output = this.output;
+        if (output == view || output == invertedView) {
+            return ((View)output).lines(first, count);
+        }
+        return super.getLines(first, count);
+    }
+
+    /**
+     * @return the number of samples counted, decayed if there is a half-life
+     */
+    public synchronized int getSamples() {
+        return (int)Math.round(samples / weight);
+    }
+
+    /**
+     * @return the frames that were innermost in the most samples, with those
+     * sample counts, most first
+     */
+    public synchronized Map<String, Integer> hotFrames(int limit) {
+        Map<Integer, Double> self = new HashMap<>();
+        root.addSelf(self);
+        List<Map.Entry<Integer, Double>> sorted = new ArrayList<>(self.entrySet());
+        sorted.sort((a, b) -> Double.compare(b.getValue(), a.getValue()));
+
+        Map<String, Integer> frames = new LinkedHashMap<>();
+        for (int i = 0; i < sorted.size() && i < limit; i++) {
+            frames.put(FrameDictionary.get(sorted.get(i).getKey()), (int)Math.round(sorted.get(i).getValue() / weight));
+        }
+        return Collections.unmodifiableMap(frames);
+    }
+
+    /**
+     * @param time when the sample was taken in ms, which with a half-life decides
+     * how much more it weighs than the sample before
+     */
+    public synchronized void addSample(long time, Collection<ThreadInfo> threads) {
+        double weight = nextWeight(time);
+        int windowSize = config.getStacksWindow();
+        // the leaves of both tries, in pairs
+        Node[] leaves = windowSize > 0 ? new Node[threads.size() * 2] : null;
+        boolean inverted = this.inverted;
+        int leafCount = 0;
         for (ThreadInfo thread : threads) {
             if (!config.matchesNameRegex(thread)) {
                 continue;
             }
+            if (config.isOnCpuOnly() && thread.getState() != null && thread.getState() != Thread.State.RUNNABLE) {
+                continue;
+            }
             int frameIndex = config.findMatchingFrame(thread);
             if (frameIndex < 0) {
                 continue;
             }
 
-            samples++;
-            root.add(thread.getFrames(), frameIndex);
+            samples += weight;
+            Node node = root;
+            if (config.isMultiJvm()) {
+                // every JVM gets its own subtree under the root
+                root.count += weight;
+                node = root.getOrAddChild(jvmFrame(thread.getPid()));
+            }
+            Node leaf = node.add(thread.getFrames(), frameIndex, weight);
+            Node invertedLeaf = inverted ? addInverted(leaf, weight) : null;
+            if (leaves != null) {
+                leaves[leafCount++] = leaf;
+                leaves[leafCount++] = invertedLeaf;
+            }
+        }
+
+        if (leaves != null) {
+            window.add(Arrays.copyOf(leaves, leafCount));
+            while (window.size() > windowSize) {
+                expire(window.poll());
+            }
+        }
+        generation++;
+    }
+
+    /**
+     * Takes a sample that left the window back out of the trie by walking from each
+     * of its leaves up to the root, which costs the same as adding it did. Nodes
+     * no sample in the window passes through anymore are unlinked, so the trie
+     * only holds the stacks in the window.
+     */
+    private void expire(Node[] leaves) {
+        for (int i = 0; i < leaves.length; i += 2) {
+            for (Node node = leaves[i]; node != null; node = node.parent) {
+                node.count--;
+                if (node.count <= 0 && node.parent != null) {
+                    node.parent.removeChild(node);
+                }
+            }
+
+            samples--;
+            if (!inverted || leaves[i + 1] == null) {
+                continue;
+            }
+
+            // the inverted path holds the same frames, innermost just below the root
+            stamp++;
+            for (Node node = leaves[i + 1]; node.parent != null; node = node.parent) {
+                node.count--;
+                if (node.count <= 0) {
+                    node.parent.removeChild(node);
+                }
+                if (stamps[node.frame] != stamp) {
+                    stamps[node.frame] = stamp;
+                    totalCounts[node.frame]--;
+                }
+                if (node.parent.parent == null) {
+                    selfCounts[node.frame]--;
+                }
+            }
+            invertedRoot.count--;
+        }
+    }
+
+    /**
+     * Counts the stack that ends at the leaf into the inverted trie, walking up
+     * from the innermost frame, and into the methods table: the innermost frame
+     * as running itself and every distinct frame once as being on the stack.
+     * @return the node of the outermost frame in the inverted trie
+     */
+    private Node addInverted(Node leaf, double weight) {
+        if (selfCounts.length < FrameDictionary.size()) {
+            int length = Math.max(FrameDictionary.size(), selfCounts.length * 2);
+            selfCounts = Arrays.copyOf(selfCounts, length);
+            totalCounts = Arrays.copyOf(totalCounts, length);
+            stamps = Arrays.copyOf(stamps, length);
+        }
+        Node node = invertedRoot;
+        node.count += weight;
+        if (isFrame(leaf)) {
+            selfCounts[leaf.frame] += weight;
+        }
+        stamp++;
+        for (Node frame = leaf; isFrame(frame); frame = frame.parent) {
+            node = node.getOrAddChild(frame.frame);
+            node.count += weight;
+            if (stamps[frame.frame] != stamp) {
+                stamps[frame.frame] = stamp;
+                totalCounts[frame.frame] += weight;
+            }
+        }
+        return node;
+    }
+
+    /**
+     * @return whether the node of the trie is a stack frame, not the root or the
+     * subtree of a JVM
+     */
+    private boolean isFrame(Node node) {
+        return node.parent != null && !(config.isMultiJvm() && node.parent == root);
+    }
+
+    /**
+     * Builds the inverted trie and the methods table from the trie, from the leaves
+     * of the window if there is one and from the samples that ended at each node
+     * otherwise.
+     */
+    private void buildInverted() {
+        invertedRoot = new Node(-1, null);
+        Arrays.fill(selfCounts, 0);
+        Arrays.fill(totalCounts, 0);
+        if (config.getStacksWindow() > 0) {
+            for (Node[] leaves : window) {
+                for (int i = 0; i < leaves.length; i += 2) {
+                    leaves[i + 1] = addInverted(leaves[i], 1);
+                }
+            }
+        } else {
+            addInvertedSelf(root);
+        }
+        generation++;
+    }
+
+    private void addInvertedSelf(Node node) {
+        double childrenCount = 0;
+        for (Node child : node.childNodes) {
+            if (child != null) {
+                childrenCount += child.count;
+                addInvertedSelf(child);
+            }
+        }
+        // ignore what rounding leaves over with a half-life
+        if (node.count - childrenCount > node.count * 1e-9) {
+            addInverted(node, node.count - childrenCount);
+        }
+    }
+
+    /**
+     * With a half-life, instead of decaying every count on every sample, each sample
+     * is weighted more than the last by the factor for the time between them, which
+     * leaves the ratios the same. Counts are divided by the current weight for
+     * display, and the whole trie is scaled down once in a long while before the
+     * weights overflow.
+     */
+    private double nextWeight(long time) {
+        long halfLife = config.getStacksHalfLife();
+        // the interval adapts and samples can be dropped, so only the clock tells
+        // how much time passed, and going back in a replay doesn't undo any of it
+        long elapsed = lastTime < 0 ? 0 : Math.max(0, time - lastTime);
+        lastTime = time;
+        if (halfLife > 0) {
+            weight *= Math.pow(2, (double)elapsed / halfLife);
+            if (weight > 1e100) {
+                root.scale(1 / weight);
+                invertedRoot.scale(1 / weight);
+                for (int i = 0; i < selfCounts.length; i++) {
+                    selfCounts[i] /= weight;
+                    totalCounts[i] /= weight;
+                }
+                samples /= weight;
+                weight = 1;
+            }
+        }
+        return weight;
+    }
+
+    private int jvmFrame(String pid) {
+        Integer frame = jvmFrames.get(pid);
+        if (frame == null) {
+            frame = FrameDictionary.intern("JVM - PID: " + pid);
+            jvmFrames.put(pid, frame);
+        }
+        return frame;
+    }
+
+    /**
+     * The trie as the list of displayed lines, without building them. Lines are
+     * only formatted when asked for: the first one is found by walking down from
+     * the root past the rows of the siblings before it, and the rest follow in
+     * order from there. Row counts and sorted children are cached until the
+     * next sample, so showing a screen costs about its height and how far down
+     * it is, not the size of the trie.
+     */
+    private class View extends AbstractList<String> {
+
+        private final boolean inverted;
+        private final StringBuilder builder = new StringBuilder();
+        private volatile List<String> header = Collections.emptyList();
+        private double limit = -1;
+        private Node[][] levels = new Node[16][];
+        private int[] positions = new int[16];
+        private int depth;
+
+        /**
+         * @param inverted whether to show the callees first trie instead
+         */
+        private View(boolean inverted) {
+            this.inverted = inverted;
+        }
+
+        private Node root() {
+            return inverted ? invertedRoot : root;
+        }
+
+        @Override
+        public int size() {
+            synchronized (StacksPrinter.this) {
+                checkLimit();
+                return header.size() + (samples > 0 ? root().rows(Integer.MAX_VALUE) : 1);
+            }
+        }
+
+        /**
+         * A sample can shrink the trie between size() and get(), so rows past the
+         * end are empty rather than an error.
+         */
+        @Override
+        public String get(int row) {
+            List<String> lines = lines(row, 1);
+            return lines.isEmpty() ? "" : lines.get(0);
+        }
+
+        /**
+         * @return the lines from the row on, at most count of them
+         */
+        List<String> lines(int row, int count) {
+            synchronized (StacksPrinter.this) {
+                List<String> lines = new ArrayList<>(Math.min(count, 256));
+                List<String> header = this.header;
+                for (int i = Math.max(0, row); i < header.size() && lines.size() < count; i++) {
+                    lines.add(header.get(i));
+                }
+                row = Math.max(0, row - header.size());
+                if (samples <= 0) {
+                    if (row == 0 && lines.size() < count) {
+                        lines.add("root - PID: " + config.getPid() + " - no results");
+                    }
+                    return lines;
+                }
+
+                Node node = nodeAt(row);
+                while (node != null && lines.size() < count) {
+                    node.print(depth, builder);
+                    lines.add(builder.toString());
+                    node = next(node);
+                }
+                return lines;
+            }
+        }
+
+        /**
+         * @return the node on the line, or null on the header or past the end
+         */
+        private Node nodeAtLine(int line) {
+            return line < header.size() ? null : nodeAt(line - header.size());
+        }
+
+        /**
+         * @return the node on the row of the trie, with the path to it left in
+         * levels and positions, or null past the end
+         */
+        private Node nodeAt(int row) {
+            checkLimit();
+            depth = 0;
+            if (samples <= 0 || row < 0) {
+                return null;
+            }
+            Node node = root();
+            while (row > 0) {
+                row--;
+                Node[] children = node.isExpanded() ? node.sortedChildren() : NO_NODES;
+                int i = 0;
+                for (; i < children.length; i++) {
+                    int rows = children[i].rows(row + 1);
+                    if (row < rows) {
+                        break;
+                    }
+                    row -= rows;
+                }
+                if (i == children.length) {
+                    return null;
+                }
+                push(children, i);
+                node = children[i];
+            }
+            return node;
+        }
+
+        /**
+         * @return the node on the row after the node, or null at the end
+         */
+        private Node next(Node node) {
+            Node[] children = node.isExpanded() ? node.sortedChildren() : NO_NODES;
+            if (children.length > 0) {
+                push(children, 0);
+                return children[0];
+            }
+            while (depth > 0 && positions[depth - 1] + 1 >= levels[depth - 1].length) {
+                depth--;
+            }
+            if (depth == 0) {
+                return null;
+            }
+            return levels[depth - 1][++positions[depth - 1]];
+        }
+
+        private void push(Node[] siblings, int position) {
+            if (depth == levels.length) {
+                levels = Arrays.copyOf(levels, depth * 2);
+                positions = Arrays.copyOf(positions, depth * 2);
+            }
+            levels[depth] = siblings;
+            positions[depth] = position;
+            depth++;
+        }
+
+        private void checkLimit() {
+            if (limit != config.getStacksLimitPercent()) {
+                limit = config.getStacksLimitPercent();
+                generation++;
+            }
         }
     }
 
     public class Node implements Comparable<Node> {
-        private final String frame;
-        private final Map<String, Node> children = new HashMap<>();
-        private NavigableSet<Node> sorted = new TreeSet<>();
-        private int count;
+        private final int frame;
+        private final Node parent;
+        private int[] childFrames = new int[0];
+        private Node[] childNodes = new Node[0];
+        private int childCount;
+        private double count;
+        private boolean toggled;
+        private Node[] sorted;
+        private int sortedGeneration = -1;
+        private int rows;
+        private int rowsGeneration = -1;
 
-        public Node(String frame) {
+        public Node(int frame, Node parent) {
             this.frame = frame;
+            this.parent = parent;
         }
 
+        public String getFrame() {
+            return frame < 0 ? "root - PID: " + config.getPid() : FrameDictionary.get(frame);
+        }
+
+        /**
+         * @return the number of samples that passed through this node, decayed if
+         * there is a half-life
+         */
         public int getCount() {
-            return count;
+            return (int)Math.round(count / weight);
+        }
+
+        /**
+         * @return the children, most samples first, in a new array that isn't kept
+         */
+        public Node[] getChildren() {
+            return sortChildren();
         }
 
-        public void print(String indent, StringBuilder builder, List<String> output) {
-            double rate = (double)count / (double)samples;
+        /**
+         * @return the child table as it is: unsorted, with empty (null) slots and
+         * children whose samples have all left the window. Not to be changed.
+         */
+        Node[] getChildTable() {
+            return childNodes;
+        }
+
+        /**
+         * @return whether the children are shown: when the node is above the limit
+         * percent, unless toggled
+         */
+        private boolean isExpanded() {
+            return (count / samples > config.getStacksLimitPercent()) != toggled;
+        }
 
+        /**
+         * @return the rows this node and its shown descendants take up, or the cap
+         * if that is less. Only complete counts are cached, until the next
+         * generation of the trie, so asking whether a row is under a node costs at
+         * most that many rows.
+         */
+        private int rows(int cap) {
+            if (rowsGeneration == generation) {
+                return Math.min(rows, cap);
+            }
+            int rows = 1;
+            if (isExpanded()) {
+                for (Node child : childNodes) {
+                    if (rows >= cap) {
+                        return cap;
+                    }
+                    if (child != null && child.count > 0) {
+                        rows += child.rows(cap - rows);
+                    }
+                }
+            }
+            if (rows >= cap) {
+                return cap;
+            }
+            this.rows = rows;
+            rowsGeneration = generation;
+            return rows;
+        }
+
+        private void print(int depth, StringBuilder builder) {
             builder.setLength(0);
-            builder.append(indent);
-            builder.append(frame);
+            for (int i = 0; i < depth; i++) {
+                builder.append("|  ");
+            }
+            builder.append(getFrame());
             builder.append(" - ");
-            builder.append(count);
+            builder.append(getCount());
             builder.append(" (");
-            builder.append(format.format(rate * 100));
+            builder.append(format.format(count / samples * 100));
             builder.append(" %)");
-            output.add(builder.toString());
+            if (toggled && childCount > 0) {
+                builder.append(isExpanded() ? " [-]" : " [+]");
+            }
+        }
+
+        /**
+         * Children are only sorted when they are about to be printed, so adding a
+         * sample is just a counter increment per frame. Children whose samples
+         * have all left the window are skipped.
+         */
+        private Node[] sortedChildren() {
+            if (sortedGeneration != generation) {
+                sorted = sortChildren();
+                sortedGeneration = generation;
+            }
+            return sorted;
+        }
+
+        private Node[] sortChildren() {
+            Node[] sorted = new Node[childCount];
+            int i = 0;
+            for (Node child : childNodes) {
+                if (child != null && child.count > 0) {
+                    sorted[i++] = child;
+                }
+            }
+            if (i < sorted.length) {
+                sorted = Arrays.copyOf(sorted, i);
+            }
+            Arrays.sort(sorted);
+            return sorted;
+        }
+
+        /**
+         * Counts the stack frames[index] down to frames[0] under this node.
+         * @return the node of the innermost frame
+         */
+        public Node add(int[] frames, int index, double weight) {
+            Node node = this;
+            node.count += weight;
+            for (; index >= 0; index--) {
+                node = node.getOrAddChild(frames[index]);
+                node.count += weight;
+            }
+            return node;
+        }
 
-            if (rate > config.getStacksLimitPercent()) {
-                for (Node child : sorted) {
-                    child.print(indent + "|  ", builder, output);
+        /**
+         * Adds the samples that ended at each frame under this node, rather than
+         * passing through it, to the frame's total.
+         */
+        private void addSelf(Map<Integer, Double> self) {
+            double childrenCount = 0;
+            for (Node child : childNodes) {
+                if (child != null) {
+                    childrenCount += child.count;
+                    child.addSelf(self);
                 }
             }
+            // ignore what rounding leaves over with a half-life
+            if (frame >= 0 && count - childrenCount > count * 1e-9) {
+                self.merge(frame, count - childrenCount, Double::sum);
+            }
         }
-        
-        public void add(List<String> frames, int index) {
-            count++;
-            if (index < 0) {
-                return;
+
+        private void scale(double factor) {
+            count *= factor;
+            for (Node child : childNodes) {
+                if (child != null) {
+                    child.scale(factor);
+                }
             }
+        }
 
-            String frame = frames.get(index);
+        private Node getOrAddChild(int frame) {
+            Node child = child(frame);
+            if (child == null) {
+                child = new Node(frame, this);
+                putChild(child);
+            }
+            return child;
+        }
 
-            Node node = children.get(frame);
-            if (node == null) {
-                node = new Node(frame);
-                children.put(frame, node);
-            } else {
-                sorted.remove(node);
+        /**
+         * Children are kept in a small open-addressing table keyed by frame id.
+         */
+        private Node child(int frame) {
+            if (childCount == 0) {
+                return null;
             }
+            int mask = childNodes.length - 1;
+            for (int slot = hash(frame) & mask; childNodes[slot] != null; slot = (slot + 1) & mask) {
+                if (childFrames[slot] == frame) {
+                    return childNodes[slot];
+                }
+            }
+            return null;
+        }
 
-            node.add(frames, index - 1);
-            sorted.add(node);
+        private void putChild(Node node) {
+            if ((childCount + 1) * 2 > childNodes.length) {
+                Node[] old = childNodes;
+                childFrames = new int[Math.max(4, old.length * 2)];
+                childNodes = new Node[childFrames.length];
+                for (Node child : old) {
+                    if (child != null) {
+                        insertChild(child);
+                    }
+                }
+            }
+            insertChild(node);
+            childCount++;
+        }
+
+        /**
+         * Takes the child out of the table, shifting back the children that probed
+         * past its slot.
+         */
+        private void removeChild(Node node) {
+            int mask = childNodes.length - 1;
+            int slot = hash(node.frame) & mask;
+            while (childNodes[slot] != node) {
+                slot = (slot + 1) & mask;
+            }
+            childNodes[slot] = null;
+            childCount--;
+
+            int gap = slot;
+            for (int next = (gap + 1) & mask; childNodes[next] != null; next = (next + 1) & mask) {
+                int home = hash(childFrames[next]) & mask;
+                if (((next - home) & mask) >= ((next - gap) & mask)) {
+                    childFrames[gap] = childFrames[next];
+                    childNodes[gap] = childNodes[next];
+                    childNodes[next] = null;
+                    gap = next;
+                }
+            }
+        }
+
+        private void insertChild(Node node) {
+            int mask = childNodes.length - 1;
+            int slot = hash(node.frame) & mask;
+            while (childNodes[slot] != null) {
+                slot = (slot + 1) & mask;
+            }
+            childFrames[slot] = node.frame;
+            childNodes[slot] = node;
         }
 
         @Override
         public int compareTo(Node o) {
-            int diff = o.count - count;
+            int diff = Double.compare(o.count, count);
             if (diff != 0) {
                 return diff;
             }
 
-            diff = children.size() - o.children.size();
+            diff = childCount - o.childCount;
             if(diff != 0) {
                 return diff;
             }
 
-            return frame.compareTo(o.frame);
+            return getFrame().compareTo(o.getFrame());
         }
 
     }
+
+    private static int hash(int frame) {
+        return frame * 0x9E3779B9 >>> 16;
+    }
 }
\ No newline at end of file
@@ -0,0 +1,171 @@
+package jtop;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Shows how many threads are in each state for every thread pool, so a pool of
+ * hundreds of parked threads can be told apart from a few busy ones. Threads
+ * are grouped by name with the trailing number removed, e.g. "pool-3-thread-17"
+ * belongs to "pool-3-thread".
+ */
+public class StatesPrinter extends Printer {
+
+    private static final Thread.State[] COLUMNS = new Thread.State[] {
+        Thread.State.RUNNABLE,
+        Thread.State.BLOCKED,
+        Thread.State.WAITING,
+        Thread.State.TIMED_WAITING
+    };
+
+    public StatesPrinter(Config config) throws IOException {
+        super(config);
+    }
+
+    @Override
+    protected String getCommandsString() {
+        String commands = "Cmds: (i)nterval | (n)ame filter:";
+        commands += config.hasNameRegex() ? "+" : "-";
+        commands += " | (f)rame filter:";
+        commands += config.hasFrameFilter() ? "+" : "-";
+        commands += " | (s)wap mode : ";
+        return commands;
+    }
+
+    @Override
+    protected void runLoop() throws IOException, InterruptedException {
+        SamplePipeline.Sample sample = nextSample();
+        if (sample.isFull()) {
+            this.output = render(sample.getThreads());
+        }
+    }
+
+    /**
+     * @return a line per pool with its thread count and the count in each state,
+     * biggest pools first, under a header and a line with the totals
+     */
+    List<String> render(Collection<ThreadInfo> threads) {
+        boolean multiJvm = config.isMultiJvm();
+        Map<String, Pool> pools = new HashMap<>();
+        Pool total = new Pool("", "<all threads>");
+        for (ThreadInfo thread : threads) {
+            if (!config.keepThread(thread)) {
+                continue;
+            }
+            String name = pool(thread.getName());
+            String key = multiJvm ? thread.getPid() + '\0' + name : name;
+            Pool pool = pools.get(key);
+            if (pool == null) {
+                pool = new Pool(thread.getPid(), name);
+                pools.put(key, pool);
+            }
+            pool.add(thread.getState());
+            total.add(thread.getState());
+        }
+
+        List<Pool> sorted = new ArrayList<>(pools.values());
+        sorted.sort(null);
+
+        int pidLen = 5;
+        if (multiJvm) {
+            for (Pool pool : sorted) {
+                pidLen = Math.max(pidLen, pool.pid.length() + 2);
+            }
+        }
+
+        StringBuilder builder = new StringBuilder();
+        pad(builder, "THREADS", 9);
+        for (Thread.State state : COLUMNS) {
+            pad(builder, state.name(), state.name().length() + 2);
+        }
+        if (multiJvm) {
+            pad(builder, "PID", pidLen);
+            builder.append("POOL");
+        } else {
+            builder.append("POOL - PID: " + config.getPid());
+        }
+
+        List<String> output = new ArrayList<>(sorted.size() + 2);
+        output.add(builder.toString());
+        output.add(total.print(builder, multiJvm, pidLen));
+        for (Pool pool : sorted) {
+            output.add(pool.print(builder, multiJvm, pidLen));
+        }
+        return output;
+    }
+
+    /**
+     * @return the thread name without its trailing number and the separator before it
+     */
+    static String pool(String name) {
+        int end = name.length();
+        while (end > 0 && Character.isDigit(name.charAt(end - 1))) {
+            end--;
+        }
+        if (end == name.length()) {
+            return name;
+        }
+        while (end > 0 && "-_#: ".indexOf(name.charAt(end - 1)) >= 0) {
+            end--;
+        }
+        return end == 0 ? name : name.substring(0, end);
+    }
+
+    private static void pad(StringBuilder builder, String str, int to) {
+        builder.append(str);
+        for (int i = str.length(); i < to; i++) {
+            builder.append(' ');
+        }
+    }
+
+    private static class Pool implements Comparable<Pool> {
+        private final String pid;
+        private final String name;
+        private final int[] states = new int[COLUMNS.length];
+        private int threads;
+
+        private Pool(String pid, String name) {
+            this.pid = pid;
+            this.name = name;
+        }
+
+        private void add(Thread.State state) {
+            threads++;
+            for (int i = 0; i < COLUMNS.length; i++) {
+                if (COLUMNS[i] == state) {
+                    states[i]++;
+                }
+            }
+        }
+
+        private String print(StringBuilder builder, boolean multiJvm, int pidLen) {
+            builder.setLength(0);
+            pad(builder, Integer.toString(threads), 9);
+            for (int i = 0; i < COLUMNS.length; i++) {
+                pad(builder, Integer.toString(states[i]), COLUMNS[i].name().length() + 2);
+            }
+            if (multiJvm) {
+                pad(builder, pid, pidLen);
+            }
+            builder.append(name);
+            return builder.toString();
+        }
+
+        @Override
+        public int compareTo(Pool o) {
+            int diff = o.threads - threads;
+            if (diff != 0) {
+                return diff;
+            }
+            diff = pid.compareTo(o.pid);
+            if (diff != 0) {
+                return diff;
+            }
+            return name.compareTo(o.name);
+        }
+    }
+}
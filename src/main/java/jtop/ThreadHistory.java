@@ -0,0 +1,346 @@
+package jtop;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import jtop.TopPrinter.Stat;
+
+/**
+ * Keeps a fixed amount of state per live thread across samples: its cpu time and
+ * allocation counter, a ring buffer of the cores it used in the last samples and
+ * its 1, 5 and 15 minute load averages. Entries are kept in a table keyed by
+ * {@link ThreadInfo#getLongKey()} and dropped as soon as a sample no longer has
+ * the thread, so memory follows the live thread count however long jtop runs
+ * and however many threads come and go.
+ *
+ * When several JVMs are sampled each on its own schedule, threads carry the time
+ * their JVM was dumped ({@link ThreadInfo#getTime()}), and deltas are taken per
+ * JVM between its dumps rather than between samples. A dump seen a second time
+ * leaves its threads as they were, and the threads of a JVM missing from a
+ * sample are kept for a few of its intervals.
+ */
+public class ThreadHistory {
+
+    public static final int DEFAULT_LENGTH = 60;
+    /** The periods of the load averages, in ms. */
+    public static final long[] AVERAGES = new long[] { 60000, 300000, 900000 };
+
+    /** How many of its intervals a JVM can be missing from the samples before its threads are dropped. */
+    private static final int MISSING_INTERVALS = 3;
+
+    private final LongMap<Entry> entries = new LongMap<>();
+    private final Map<String, Jvm> jvms = new HashMap<>();
+    private final List<Entry> live = new ArrayList<>();
+    private final int length;
+    private long lastTime = -1;
+    private long elapsed;
+    private int samples;
+    private Entry[] heap = new Entry[0];
+
+    public ThreadHistory() {
+        this(DEFAULT_LENGTH);
+    }
+
+    /**
+     * @param length the number of samples kept per thread
+     */
+    public ThreadHistory(int length) {
+        this.length = length;
+    }
+
+    /**
+     * Updates the history of every thread in the sample and forgets the threads
+     * that are gone.
+     * @param time the time of the sample in ms
+     */
+    public void add(long time, Collection<ThreadInfo> threads) {
+        elapsed = lastTime < 0 ? 0 : Math.max(1, time - lastTime);
+        lastTime = time;
+        samples++;
+
+        Jvm jvm = null;
+        for (ThreadInfo thread : threads) {
+            if (jvm == null || !jvm.pid.equals(thread.getPid())) {
+                jvm = jvm(thread, time);
+            }
+            long key = thread.getLongKey();
+            Entry entry = entries.get(key);
+            if (entry == null) {
+                entry = new Entry(length, jvm);
+                entries.put(key, entry);
+                live.add(entry);
+            } else if (jvm.repeated) {
+                entry.sample = samples;
+                continue;
+            }
+            entry.update(thread, samples, jvm.elapsed, jvm.decays);
+        }
+
+        // swap the threads that weren't in the sample out of the live list
+        for (int i = live.size() - 1; i >= 0; i--) {
+            Entry entry = live.get(i);
+            if (entry.sample != samples && !missing(entry.jvm, time)) {
+                entries.remove(entry.thread.getLongKey());
+                Entry moved = live.remove(live.size() - 1);
+                if (i < live.size()) {
+                    live.set(i, moved);
+                }
+            }
+        }
+        jvms.values().removeIf(other -> other.sample != samples && !missing(other, time));
+    }
+
+    /**
+     * @return the JVM of the thread, with its elapsed time and decays updated the
+     * first time it is seen in this sample
+     */
+    private Jvm jvm(ThreadInfo thread, long time) {
+        Jvm jvm = jvms.get(thread.getPid());
+        if (jvm == null) {
+            jvm = new Jvm(thread.getPid());
+            jvms.put(jvm.pid, jvm);
+        }
+        if (jvm.sample == samples) {
+            return jvm;
+        }
+        jvm.sample = samples;
+        long dumped = thread.getTime() >= 0 ? thread.getTime() : time;
+        jvm.repeated = thread.getTime() >= 0 && dumped == jvm.time;
+        if (!jvm.repeated) {
+            jvm.elapsed = jvm.time < 0 ? 0 : Math.max(1, dumped - jvm.time);
+            jvm.time = dumped;
+            for (int i = 0; i < AVERAGES.length; i++) {
+                jvm.decays[i] = Math.exp(-(double)jvm.elapsed / AVERAGES[i]);
+            }
+        }
+        return jvm;
+    }
+
+    /**
+     * @return whether the JVM was left out of this sample, but recently enough
+     * dumped that its threads are kept
+     */
+    private boolean missing(Jvm jvm, long time) {
+        return jvm.sample != samples && time - jvm.time <= MISSING_INTERVALS * Math.max(jvm.elapsed, elapsed);
+    }
+
+    /**
+     * @return the ms between the last two samples, or 0 before the second sample
+     */
+    public long getElapsed() {
+        return elapsed;
+    }
+
+    public int size() {
+        return live.size();
+    }
+
+    /**
+     * @return the history of the thread, or null if it wasn't in the last sample
+     */
+    public Entry get(ThreadInfo thread) {
+        return entries.get(thread.getLongKey());
+    }
+
+    /**
+     * Ranks the threads that pass the filters and the cpu cutoff by the cpu time
+     * they used since the last sample, keeping the top limit in a bounded heap.
+     * When ranking by allocation, threads that allocated nothing are left out
+     * instead.
+     * @return the top threads, busiest first
+     */
+    public List<Stat> top(Config config) {
+        boolean byAllocation = config.isSortByAllocation();
+        int limit = config.getTopLimit();
+        // the limit is Integer.MAX_VALUE when there is none
+        int capacity = Math.min(limit, live.size());
+        if (heap.length < capacity) {
+            heap = new Entry[capacity];
+        }
+
+        int size = 0;
+        for (Entry entry : live) {
+            if (byAllocation ? entry.currentAllocated <= 0 : entry.currentTime < config.getCpuTimeCutoff()) {
+                continue;
+            }
+            if (size == limit && compare(entry, heap[0], byAllocation) <= 0) {
+                continue;
+            }
+            if (!config.keepThread(entry.thread)) {
+                continue;
+            }
+            if (size < limit) {
+                heap[size] = entry;
+                siftUp(size++, byAllocation);
+            } else {
+                heap[0] = entry;
+                siftDown(0, size, byAllocation);
+            }
+        }
+
+        List<Stat> stats = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            stats.add(new Stat(heap[i], byAllocation));
+        }
+        Arrays.fill(heap, 0, size, null);
+        stats.sort((a, b) -> b.compareTo(a));
+        return stats;
+    }
+
+    private void siftUp(int index, boolean byAllocation) {
+        Entry entry = heap[index];
+        while (index > 0) {
+            int parent = (index - 1) >>> 1;
+            if (compare(entry, heap[parent], byAllocation) >= 0) {
+                break;
+            }
+            heap[index] = heap[parent];
+            index = parent;
+        }
+        heap[index] = entry;
+    }
+
+    private void siftDown(int index, int size, boolean byAllocation) {
+        Entry entry = heap[index];
+        while (true) {
+            int child = index * 2 + 1;
+            if (child >= size) {
+                break;
+            }
+            if (child + 1 < size && compare(heap[child + 1], heap[child], byAllocation) < 0) {
+                child++;
+            }
+            if (compare(entry, heap[child], byAllocation) <= 0) {
+                break;
+            }
+            heap[index] = heap[child];
+            index = child;
+        }
+        heap[index] = entry;
+    }
+
+    /**
+     * Orders entries like {@link Stat#compareTo(Stat)} orders their stats.
+     */
+    private static int compare(Entry a, Entry b, boolean byAllocation) {
+        int diff = byAllocation ? Long.compare(a.currentAllocated, b.currentAllocated) : 0;
+        if (diff != 0) {
+            return diff;
+        }
+        diff = Double.compare(a.currentTime, b.currentTime);
+        if (diff != 0) {
+            return diff;
+        }
+        diff = Double.compare(a.thread.getCpuTime(), b.thread.getCpuTime());
+        if (diff != 0) {
+            return diff;
+        }
+        diff = a.thread.getName().compareTo(b.thread.getName());
+        if (diff != 0) {
+            return diff;
+        }
+        return a.thread.getKey().compareTo(b.thread.getKey());
+    }
+
+    private static class Jvm {
+        private final String pid;
+        private final double[] decays = new double[AVERAGES.length];
+        private long time = -1;
+        private long elapsed;
+        private int sample;
+        private boolean repeated;
+
+        private Jvm(String pid) {
+            this.pid = pid;
+        }
+    }
+
+    public static class Entry {
+        private final float[] cores;
+        private final double[] averages = new double[AVERAGES.length];
+        private final Jvm jvm;
+        private ThreadInfo thread;
+        private long elapsed;
+        private double currentTime;
+        private long currentAllocated;
+        private int sample;
+        private int count;
+
+        private Entry(int length, Jvm jvm) {
+            cores = new float[length];
+            this.jvm = jvm;
+        }
+
+        private void update(ThreadInfo current, int sample, long elapsed, double[] decays) {
+            if (thread == null) {
+                // new since the last sample, so all its cpu time is recent
+                currentTime = current.getCpuTime();
+                currentAllocated = current.getAllocatedBytes();
+            } else {
+                currentTime = current.getCpuTime() - thread.getCpuTime();
+                if (current.getAllocatedBytes() < 0) {
+                    currentAllocated = -1;
+                } else {
+                    currentAllocated = current.getAllocatedBytes() - Math.max(0, thread.getAllocatedBytes());
+                }
+            }
+            thread = current;
+            this.sample = sample;
+            this.elapsed = elapsed;
+            if (elapsed == 0) {
+                return;
+            }
+
+            double load = Math.max(0, currentTime) / elapsed;
+            for (int i = 0; i < averages.length; i++) {
+                averages[i] = count == 0 ? load : averages[i] * decays[i] + load * (1 - decays[i]);
+            }
+            cores[count++ % cores.length] = (float)load;
+        }
+
+        public ThreadInfo getThread() {
+            return thread;
+        }
+        /**
+         * @return the ms between the last two samples of the thread's JVM, which
+         * the current values were measured over, or 0 before the second
+         */
+        public long getElapsed() {
+            return elapsed;
+        }
+        /**
+         * @return the cpu time used since the last sample, in ms
+         */
+        public double getCurrentTime() {
+            return currentTime;
+        }
+        /**
+         * @return the bytes allocated since the last sample, or -1 if unknown
+         */
+        public long getCurrentAllocated() {
+            return currentAllocated;
+        }
+        /**
+         * @return the load average over the period of {@link ThreadHistory#AVERAGES}
+         * at the index, in cores
+         */
+        public double getAverage(int index) {
+            return averages[index];
+        }
+        /**
+         * @return the cores used in each of the last samples, oldest first
+         */
+        public float[] getHistory() {
+            int size = Math.min(count, cores.length);
+            float[] history = new float[size];
+            for (int i = 0; i < size; i++) {
+                history[i] = cores[(count - size + i) % cores.length];
+            }
+            return history;
+        }
+    }
+}
@@ -1,30 +1,124 @@
 package jtop;
 
-import java.util.List;
-
 public class ThreadInfo {
+    private final String pid;
     private final String id;
+    private final long nativeId;
     private final String name;
+    private final Thread.State state;
     private final double cpuTime;
-    private final List<String> frames;
+    private final int[] frames;
+    private final ThreadLock[] locks;
+    private final long allocatedBytes;
+    private final long time;
+    private String key;
+
+    public ThreadInfo(String pid, String id, long nativeId, String name, Thread.State state, double cpuTime, int[] frames) {
+        this(pid, id, nativeId, name, state, cpuTime, frames, ThreadLock.NONE);
+    }
+
+    public ThreadInfo(String pid, String id, long nativeId, String name, Thread.State state, double cpuTime, int[] frames, ThreadLock[] locks) {
+        this(pid, id, nativeId, name, state, cpuTime, frames, locks, -1);
+    }
 
-    public ThreadInfo(String id, String name, double cpuTime, List<String> frames) {
+    public ThreadInfo(String pid, String id, long nativeId, String name, Thread.State state, double cpuTime, int[] frames, ThreadLock[] locks, long allocatedBytes) {
+        this(pid, id, nativeId, name, state, cpuTime, frames, locks, allocatedBytes, -1);
+    }
+
+    private ThreadInfo(String pid, String id, long nativeId, String name, Thread.State state, double cpuTime, int[] frames, ThreadLock[] locks, long allocatedBytes, long time) {
+        this.pid = pid;
         this.id = id;
+        this.nativeId = nativeId;
         this.name = name;
+        this.state = state;
         this.cpuTime = cpuTime;
         this.frames = frames;
+        this.locks = locks;
+        this.allocatedBytes = allocatedBytes;
+        this.time = time;
+    }
+
+    /**
+     * @return this thread as sampled at the time, in ms
+     */
+    public ThreadInfo withTime(long time) {
+        return new ThreadInfo(pid, id, nativeId, name, state, cpuTime, frames, locks, allocatedBytes, time);
     }
 
+    public String getPid() {
+        return pid;
+    }
     public String getId() {
         return id;
     }
+    /**
+     * @return the pid and id, which identify the thread even when monitoring several JVMs
+     */
+    public String getKey() {
+        String key = this.key;
+        if (key == null) {
+            key = pid + ':' + id;
+            this.key = key;
+        }
+        return key;
+    }
+    /**
+     * @return a 64 bit hash of {@link #getKey()}, to key primitive tables by thread
+     * without building the key string
+     */
+    public long getLongKey() {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < pid.length(); i++) {
+            hash = (hash ^ pid.charAt(i)) * 0x100000001b3L;
+        }
+        hash = (hash ^ ':') * 0x100000001b3L;
+        for (int i = 0; i < id.length(); i++) {
+            hash = (hash ^ id.charAt(i)) * 0x100000001b3L;
+        }
+        return hash;
+    }
+    /**
+     * @return the OS thread id (jstack's nid), or -1 when the sampler can't see it
+     */
+    public long getNativeId() {
+        return nativeId;
+    }
     public String getName() {
         return name;
     }
+    /**
+     * @return the java thread state, or null when the sampler doesn't know it
+     */
+    public Thread.State getState() {
+        return state;
+    }
     public double getCpuTime() {
         return cpuTime;
     }
-    public List<String> getFrames() {
+    /**
+     * @return the bytes the thread allocated since it started, or -1 when the sampler can't see it
+     */
+    public long getAllocatedBytes() {
+        return allocatedBytes;
+    }
+    /**
+     * @return the {@link FrameDictionary} ids of this thread's frames, innermost first
+     */
+    public int[] getFrames() {
         return frames;
     }
-}
\ No newline at end of file
+    /**
+     * @return the locks this thread holds or waits for, innermost first; empty when
+     * the sampler doesn't see them
+     */
+    public ThreadLock[] getLocks() {
+        return locks;
+    }
+    /**
+     * @return when the thread's JVM was sampled in ms, or -1 when that is the time
+     * of the whole sample, which is the case unless several JVMs are sampled
+     */
+    public long getTime() {
+        return time;
+    }
+}
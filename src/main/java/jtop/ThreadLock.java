@@ -0,0 +1,57 @@
+package jtop;
+
+/**
+ * A monitor or lock a thread holds or waits for, from a "- locked &lt;0x...&gt; (a ...)"
+ * style line of its stack.
+ */
+public class ThreadLock {
+
+    public static final ThreadLock[] NONE = new ThreadLock[0];
+
+    public enum Kind {
+        LOCKED,
+        WAITING_TO_LOCK,
+        PARKING,
+        WAITING_ON
+    }
+
+    private final Kind kind;
+    private final long address;
+    private final int className;
+    private final int frame;
+
+    /**
+     * @param address the monitor address, or its identity hash code when sampled over JMX
+     * @param className the {@link FrameDictionary} id of the lock's class name, or -1 if unknown
+     * @param frame the {@link FrameDictionary} id of the frame that holds or waits for the lock,
+     * or -1 for an owned java.util.concurrent lock, which has no frame
+     */
+    public ThreadLock(Kind kind, long address, int className, int frame) {
+        this.kind = kind;
+        this.address = address;
+        this.className = className;
+        this.frame = frame;
+    }
+
+    public Kind getKind() {
+        return kind;
+    }
+    public long getAddress() {
+        return address;
+    }
+    public int getClassName() {
+        return className;
+    }
+    public int getFrame() {
+        return frame;
+    }
+
+    /**
+     * @return whether the thread is stuck behind another thread holding the lock,
+     * as opposed to waiting to be notified or signalled
+     */
+    public boolean isContended() {
+        return kind == Kind.WAITING_TO_LOCK
+            || (kind == Kind.PARKING && className >= 0 && !FrameDictionary.get(className).endsWith("$ConditionObject"));
+    }
+}
@@ -2,21 +2,30 @@ package jtop;
 
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
-import java.util.NavigableSet;
-import java.util.TreeSet;
 
 public class TopPrinter extends Printer {
 
     private static final String[] LABELS = new String[] { "ms", "s", "m", "h", "d" };
     private static final double[] AMOUNTS = new double[] { 1000.0, 60.0, 60.0, 24.0 };
-    private final StacksPrinter stacks;
-
-    public TopPrinter(Config config, StacksPrinter stacks) throws IOException {
+    private static final String[] BYTE_LABELS = new String[] { "B", "KB", "MB", "GB", "TB" };
+    private static final char[] BARS = new char[] { '\u2581', '\u2582', '\u2583', '\u2584', '\u2585', '\u2586', '\u2587', '\u2588' };
+    private static final int GRAPH_SAMPLES = 20;
+    /** The load averages shown, the 1 and 5 minute ones of {@link ThreadHistory#AVERAGES}. */
+    private static final int HISTORY_AVERAGES = 2;
+    private final ThreadHistory history = new ThreadHistory();
+    /** Whether the latest sample had the bytes allocated by its threads, which only -m jmx reads. */
+    private volatile boolean allocationCounted;
+
+    public TopPrinter(Config config) throws IOException {
         super(config);
-        this.stacks = stacks;
+    }
+
+    @Override
+    public boolean needsStacks() {
+        return false;
     }
 
     @Override
@@ -24,6 +33,8 @@ public class TopPrinter extends Printer {
         Map<Character, PrinterCommandHandler> handlers = super.createHandlers();
         handlers.put('c', this::setCpuTimeCutoff);
         handlers.put('l', this::setTopLimit);
+        handlers.put('a', this::toggleAllocation);
+        handlers.put('g', this::toggleHistory);
         return handlers;
     }
 
@@ -37,9 +48,27 @@ public class TopPrinter extends Printer {
         System.out.print("\rtop thread limit is now: " + config.getTopLimit());
     }
 
+    private void toggleAllocation(TerminalLineReader reader) {
+        if (!config.isSortByAllocation() && !allocationCounted) {
+            System.out.print("\rThe sampler doesn't count allocated bytes, threads can only be ranked by allocation rate with -m jmx.");
+            return;
+        }
+        config.setSortByAllocation(!config.isSortByAllocation());
+        System.out.print("\rThreads are now ranked by " + (config.isSortByAllocation() ? "allocation rate." : "cpu time."));
+    }
+
+    private void toggleHistory(TerminalLineReader reader) {
+        config.setShowHistory(!config.isShowHistory());
+        System.out.print("\rThread history is now " + (config.isShowHistory() ? "shown." : "hidden."));
+    }
+
     @Override
     protected String getCommandsString() {
-        String commands = "Cmds: (i)nterval | (l)imit | (c)pu cutoff | (n)ame filter:";
+        String commands = "Cmds: (i)nterval | (l)imit | (c)pu cutoff | (a)lloc sort:";
+        commands += config.isSortByAllocation() ? "+" : "-";
+        commands += " | (g)raph:";
+        commands += config.isShowHistory() ? "+" : "-";
+        commands += " | (n)ame filter:";
         commands += config.hasNameRegex() ? "+" : "-";
         commands += " | (f)rame filter:";
         commands += config.hasFrameFilter() ? "+" : "-";
@@ -55,88 +84,178 @@ public class TopPrinter extends Printer {
 
     @Override
     protected void runLoop() throws IOException, InterruptedException {
-        Map<String, ThreadInfo> last = idToInfo(Executor.sampleJvm(config.getPid()));
-        stacks.addSample(last.values());
-        setWaiting();
-        while (true) {
-            Thread.sleep(config.getInterval());
+        SamplePipeline.Sample sample = nextSample();
+        allocationCounted = isAllocationCounted(sample.getThreads());
+        history.add(sample.getTime(), sample.getThreads());
+        if (history.getElapsed() == 0) {
+            setWaiting();
+            return;
+        }
+        this.output = render(history.top(config));
+    }
 
-            NavigableSet<Stat> stats = new TreeSet<>();
+    private static boolean isAllocationCounted(List<ThreadInfo> threads) {
+        for (ThreadInfo thread : threads) {
+            if (thread.getAllocatedBytes() >= 0) {
+                return true;
+            }
+        }
+        return false;
+    }
 
-            Map<String, ThreadInfo> current = idToInfo(Executor.sampleJvm(config.getPid()));
-            if (active) {
-                stacks.addSample(current.values());
+    /**
+     * @return one line per thread under a header, as displayed
+     */
+    List<String> render(Collection<Stat> stats) {
+        int curTimeLen = 4;
+        int totTimeLen = 5;
+        for (Stat stat : stats) {
+            int thisCurTimeLen = labelTime(stat.getCurrentTime()).length();
+            int thisTotTimeLen = labelTime(stat.getTotalTime()).length();
+            
+            if (thisCurTimeLen > curTimeLen) {
+                curTimeLen = thisCurTimeLen;
             }
-            for (ThreadInfo currentInfo : current.values()) {
-                if (!config.keepThread(currentInfo)) {
-                    continue;
-                }
+            if (thisTotTimeLen > totTimeLen) {
+                totTimeLen = thisTotTimeLen;
+            }
+        }
 
-                ThreadInfo lastInfo = last.get(currentInfo.getId());
-                Stat stat;
-                if (lastInfo == null) {
-                    stat = new Stat(currentInfo);
-                } else {
-                    stat = new Stat(lastInfo, currentInfo);
-                }
-                if (stat.getCurrentTime() < config.getCpuTimeCutoff()) {
-                    continue;
-                }
+        curTimeLen += 2;
+        totTimeLen += 2;
 
-                stats.add(stat);
-                if (stats.size() > config.getTopLimit()) {
-                    stats.pollFirst();
-                }
+        boolean allocation = config.isSortByAllocation();
+        int allocLen = 9;
+        int totAllocLen = 9;
+        if (allocation) {
+            for (Stat stat : stats) {
+                allocLen = Math.max(allocLen, allocationRate(stat).length() + 2);
+                totAllocLen = Math.max(totAllocLen, labelBytes(stat.getTotalAllocated()).length() + 2);
             }
+        }
 
-            stats = stats.descendingSet();
-
-            int curTimeLen = 4;
-            int totTimeLen = 5;
+        boolean showHistory = config.isShowHistory();
+        int averageLen = 8;
+        if (showHistory) {
             for (Stat stat : stats) {
-                int thisCurTimeLen = labelTime(stat.getCurrentTime()).length();
-                int thisTotTimeLen = labelTime(stat.getTotalTime()).length();
-                
-                if (thisCurTimeLen > curTimeLen) {
-                    curTimeLen = thisCurTimeLen;
-                }
-                if (thisTotTimeLen > totTimeLen) {
-                    totTimeLen = thisTotTimeLen;
+                for (int i = 0; i < HISTORY_AVERAGES; i++) {
+                    averageLen = Math.max(averageLen, labelCores(stat.getAverage(i)).length() + 2);
                 }
             }
+        }
 
-            curTimeLen += 2;
-            totTimeLen += 2;
+        boolean multiJvm = config.isMultiJvm();
+        int pidLen = 5;
+        if (multiJvm) {
+            for (Stat stat : stats) {
+                pidLen = Math.max(pidLen, stat.getThread().getPid().length() + 2);
+            }
+        }
 
-            StringBuilder builder = new StringBuilder();
-            pad(builder, "LAST", curTimeLen);
-            pad(builder, "TOTAL", totTimeLen);
+        StringBuilder builder = new StringBuilder();
+        pad(builder, "LAST", curTimeLen);
+        pad(builder, "TOTAL", totTimeLen);
+        if (allocation) {
+            pad(builder, "ALLOC/S", allocLen);
+            pad(builder, "ALLOCATED", totAllocLen);
+        }
+        if (showHistory) {
+            pad(builder, "AVG 1M", averageLen);
+            pad(builder, "AVG 5M", averageLen);
+            pad(builder, "HISTORY", GRAPH_SAMPLES + 2);
+        }
+        if (multiJvm) {
+            pad(builder, "PID", pidLen);
+            builder.append("THREAD NAME");
+        } else {
             builder.append("THREAD NAME - PID: " + config.getPid());
+        }
 
-            List<String> output = new ArrayList<>(stats.size() + 1);
-            output.add(builder.toString());
+        List<String> output = new ArrayList<>(stats.size() + 1);
+        output.add(builder.toString());
+
+        if (stats.size() == 0) {
+            output.add("<no active threads>");
+        }
+
+        for (Stat stat : stats) {
+            builder.setLength(0);
 
-            if (stats.size() == 0) {
-                output.add("<no active threads>");
+            String timeStr = labelTime(stat.getCurrentTime());
+            pad(builder, timeStr, curTimeLen);
+
+            timeStr = labelTime(stat.getTotalTime());
+            pad(builder, timeStr, totTimeLen);
+
+            if (allocation) {
+                pad(builder, allocationRate(stat), allocLen);
+                pad(builder, labelBytes(stat.getTotalAllocated()), totAllocLen);
             }
 
-            for (Stat stat : stats) {
-                builder.setLength(0);
+            if (showHistory) {
+                for (int i = 0; i < HISTORY_AVERAGES; i++) {
+                    pad(builder, labelCores(stat.getAverage(i)), averageLen);
+                }
+                graph(builder, stat.getHistory());
+            }
 
-                String timeStr = labelTime(stat.getCurrentTime());
-                pad(builder, timeStr, curTimeLen);
+            if (multiJvm) {
+                pad(builder, stat.getThread().getPid(), pidLen);
+            }
 
-                timeStr = labelTime(stat.getTotalTime());
-                pad(builder, timeStr, totTimeLen);
+            builder.append(stat.getName());
+            output.add(builder.toString());
+        }
 
-                builder.append(stat.getName());
-                output.add(builder.toString());
+        return output;
+    }
+
+    /**
+     * Draws the last samples of a thread as one bar each, scaled to its busiest
+     * sample so its shape shows even when it uses little cpu.
+     */
+    private static void graph(StringBuilder builder, float[] history) {
+        int from = Math.max(0, history.length - GRAPH_SAMPLES);
+        float max = 0;
+        for (int i = from; i < history.length; i++) {
+            max = Math.max(max, history[i]);
+        }
+        for (int i = history.length - from; i < GRAPH_SAMPLES; i++) {
+            builder.append(' ');
+        }
+        for (int i = from; i < history.length; i++) {
+            if (history[i] <= 0) {
+                builder.append(' ');
+            } else {
+                int bar = (int)Math.ceil(history[i] / max * BARS.length) - 1;
+                builder.append(BARS[Math.max(0, Math.min(BARS.length - 1, bar))]);
             }
+        }
+        builder.append("  ");
+    }
+
+    private String labelCores(double cores) {
+        return format.format(cores * 100) + "%";
+    }
 
-            this.output = output;
+    private String allocationRate(Stat stat) {
+        if (stat.getCurrentAllocated() < 0) {
+            return "n/a";
+        }
+        long elapsed = stat.getElapsed() > 0 ? stat.getElapsed() : config.getInterval();
+        return labelBytes(stat.getCurrentAllocated() * 1000.0 / elapsed);
+    }
 
-            last = current;
+    private String labelBytes(double bytes) {
+        if (bytes < 0) {
+            return "n/a";
+        }
+        int label = 0;
+        while (label < BYTE_LABELS.length - 1 && bytes >= 1024) {
+            bytes /= 1024;
+            label++;
         }
+        return format.format(bytes) + BYTE_LABELS[label];
     }
 
     private String labelTime(double time) {
@@ -155,45 +274,90 @@ public class TopPrinter extends Printer {
         }
     }
 
-    private Map<String, ThreadInfo> idToInfo(List<ThreadInfo> threadInfo) {
-        Map<String, ThreadInfo> map = new HashMap<>();
-        threadInfo.forEach(info -> map.put(info.getId(), info));
-        return map;
-    }
-
     public static class Stat implements Comparable<Stat> { 
+        private final ThreadInfo thread;
+        private final String key;
         private final String id;
         private final String name;
+        private final long elapsed;
         private final double currentTime;
         private final double totalTime;
-        
-        public Stat(ThreadInfo current) {
-            id = current.getId();
-            name = current.getName();
-            currentTime = current.getCpuTime();
-            totalTime = currentTime;
+        private final long currentAllocated;
+        private final long totalAllocated;
+        private final double[] averages;
+        private final float[] history;
+        private final boolean byAllocation;
+
+        public Stat(ThreadHistory.Entry entry, boolean byAllocation) {
+            this.thread = entry.getThread();
+            this.key = thread.getKey();
+            this.id = thread.getId();
+            this.name = thread.getName();
+            this.elapsed = entry.getElapsed();
+            this.currentTime = entry.getCurrentTime();
+            this.totalTime = thread.getCpuTime();
+            this.currentAllocated = entry.getCurrentAllocated();
+            this.totalAllocated = thread.getAllocatedBytes();
+            this.averages = new double[ThreadHistory.AVERAGES.length];
+            for (int i = 0; i < averages.length; i++) {
+                averages[i] = entry.getAverage(i);
+            }
+            this.history = entry.getHistory();
+            this.byAllocation = byAllocation;
         }
 
-        public Stat(ThreadInfo last, ThreadInfo current) {
-            this.id = last.getId();
-            this.name = current.getName();
-            this.currentTime = current.getCpuTime() - last.getCpuTime();
-            this.totalTime = current.getCpuTime();
+        public ThreadInfo getThread() {
+            return thread;
+        }
+        public String getId() {
+            return id;
         }
 
         public String getName() {
             return name;
         }
+        /**
+         * @return the ms the current values were measured over, or 0 if unknown
+         */
+        public long getElapsed() {
+            return elapsed;
+        }
         public double getCurrentTime() {
             return currentTime;
         }
         public double getTotalTime() {
             return totalTime;
         }
+        /**
+         * @return the bytes allocated since the last sample, or -1 if unknown
+         */
+        public long getCurrentAllocated() {
+            return currentAllocated;
+        }
+        public long getTotalAllocated() {
+            return totalAllocated;
+        }
+        /**
+         * @return the load average over the period of {@link ThreadHistory#AVERAGES}
+         * at the index, in cores
+         */
+        public double getAverage(int index) {
+            return averages[index];
+        }
+        /**
+         * @return the cores used in each of the last samples, oldest first
+         */
+        public float[] getHistory() {
+            return history;
+        }
 
         @Override
         public int compareTo(Stat o) {
-            int diff = Double.compare(currentTime, o.currentTime);
+            int diff = byAllocation ? Long.compare(currentAllocated, o.currentAllocated) : 0;
+            if (diff != 0) {
+                return diff;
+            }
+            diff = Double.compare(currentTime, o.currentTime);
             if (diff != 0) {
                 return diff;
             }
@@ -205,7 +369,7 @@ public class TopPrinter extends Printer {
             if (diff != 0) {
                 return diff;
             }
-            return id.compareTo(o.id);
+            return key.compareTo(o.key);
         }
 
     }
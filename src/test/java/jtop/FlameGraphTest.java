@@ -0,0 +1,81 @@
+package jtop;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class FlameGraphTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static ThreadInfo thread(String id, String ... frames) {
+        int[] ids = new int[frames.length];
+        for (int i = 0; i < frames.length; i++) {
+            ids[i] = FrameDictionary.intern(frames[i]);
+        }
+        return new ThreadInfo("1", id, -1, "thread-" + id, Thread.State.RUNNABLE, 0, ids);
+    }
+
+    private static StacksPrinter stacks(int samples) throws IOException {
+        Config config = new Config();
+        config.setPid("1");
+        StacksPrinter stacks = new StacksPrinter(config);
+        for (int i = 0; i < samples; i++) {
+            List<ThreadInfo> sample = new ArrayList<>();
+            sample.add(thread("1", "Lock.park()", "Queue.take()", "Thread.run()"));
+            sample.add(thread("2", "Parser.parse()", "Thread.run()"));
+            if (i % 2 == 0) {
+                sample.add(thread("3", "Parser.parse()", "Thread.run()"));
+                sample.add(thread("4", "Thread.run()"));
+            }
+            stacks.addSample(i * 1000, sample);
+        }
+        return stacks;
+    }
+
+    private List<String> export(StacksPrinter stacks, String name) throws IOException {
+        File file = new File(folder.getRoot(), name);
+        stacks.export(file);
+        return Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void writesOneFoldedLinePerStack() throws IOException {
+        List<String> lines = export(stacks(4), "stacks.txt");
+        Collections.sort(lines);
+        assertEquals(Arrays.asList(
+            "Thread.run() 2",
+            "Thread.run();Parser.parse() 6",
+            "Thread.run();Queue.take();Lock.park() 4"), lines);
+    }
+
+    @Test
+    public void drawsTheBiggestChildFirst() throws IOException {
+        String svg = String.join("\n", export(stacks(4), "stacks.svg"));
+        int parse = svg.indexOf("<title>Parser.parse() (6 samples");
+        int take = svg.indexOf("<title>Queue.take() (4 samples");
+        assertTrue(svg, parse > 0 && take > parse);
+        assertTrue(svg, svg.contains("data-x=\"0.0000\" data-w=\"0.5000\"><title>Parser.parse()"));
+    }
+
+    @Test
+    public void saysSoWithoutSamples() throws IOException {
+        String svg = String.join("\n", export(stacks(0), "empty.svg"));
+        assertTrue(svg, svg.contains(">No samples</text>"));
+        assertTrue(svg, !svg.contains("NaN"));
+        assertTrue(svg, svg.endsWith("</svg>"));
+    }
+}
@@ -0,0 +1,55 @@
+package jtop;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+
+public class FrameDictionaryTest {
+
+    @Test
+    public void internsEachFrameOnce() {
+        int id = FrameDictionary.intern("Once.run(Once.java:1)");
+        assertEquals(id, FrameDictionary.intern("Once.run(Once.java:1)"));
+        assertEquals("Once.run(Once.java:1)", FrameDictionary.get(id));
+    }
+
+    @Test
+    public void readsFramesInternedByOtherThreads() throws Exception {
+        int frames = 20000;
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<int[]>> results = new ArrayList<>();
+            for (int t = 0; t < 4; t++) {
+                int offset = t * 1000;
+                results.add(executor.submit(() -> {
+                    int[] ids = new int[frames];
+                    for (int i = 0; i < frames; i++) {
+                        int frame = (i + offset) % frames;
+                        ids[frame] = FrameDictionary.intern("Shared.frame" + frame + "()");
+                        // a frame another thread may have just added
+                        int other = (frame + 500) % frames;
+                        String name = "Shared.frame" + other + "()";
+                        assertEquals(name, FrameDictionary.get(FrameDictionary.intern(name)));
+                    }
+                    return ids;
+                }));
+            }
+            int[] first = results.get(0).get();
+            for (Future<int[]> result : results) {
+                int[] ids = result.get();
+                for (int i = 0; i < frames; i++) {
+                    assertEquals(first[i], ids[i]);
+                    assertEquals("Shared.frame" + i + "()", FrameDictionary.get(ids[i]));
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
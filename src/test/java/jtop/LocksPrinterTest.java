@@ -0,0 +1,76 @@
+package jtop;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class LocksPrinterTest {
+
+    private static final String DUMP =
+        "\"owner\" #12 prio=5 os_prio=0 tid=0x00007f0000001000 nid=0x101 runnable [0x00007f0000100000]\n"
+        + "   java.lang.Thread.State: RUNNABLE\n"
+        + "\tat Work.run(Work.java:10)\n"
+        + "\n"
+        + "   Locked ownable synchronizers:\n"
+        + "\t- <0x000000076ab62208> (a java.util.concurrent.locks.ReentrantLock$NonfairSync)\n"
+        + "\n"
+        + "\"waiter\" #13 prio=5 os_prio=0 tid=0x00007f0000002000 nid=0x102 waiting on condition [0x00007f0000200000]\n"
+        + "   java.lang.Thread.State: WAITING (parking)\n"
+        + "\tat sun.misc.Unsafe.park(Native Method)\n"
+        + "\t- parking to wait for  <0x000000076ab62208> (a java.util.concurrent.locks.ReentrantLock$NonfairSync)\n"
+        + "\tat Work.run(Work.java:20)\n"
+        + "\n"
+        + "   Locked ownable synchronizers:\n"
+        + "\t- None\n"
+        + "\n";
+
+    private static Config config() {
+        Config config = new Config();
+        config.setPid("1");
+        return config;
+    }
+
+    @Test
+    public void ownableSynchronizersAreHeldLocksRatherThanFrames() throws IOException {
+        List<ThreadInfo> threads = StackDumpParser.parse("1", new ByteArrayInputStream(DUMP.getBytes(StandardCharsets.UTF_8)));
+        assertEquals(2, threads.size());
+        assertEquals(1, threads.get(0).getFrames().length);
+        assertEquals(3, threads.get(1).getFrames().length);
+
+        LocksPrinter locks = new LocksPrinter(config());
+        List<String> output = locks.render(locks.addSample(threads));
+        assertTrue(output.toString(), output.get(1).startsWith("1 waiting for <0x000000076ab62208>"));
+        assertTrue(output.toString(), output.get(1).endsWith(" held by owner"));
+        assertEquals("|  waiting: waiter", output.get(2));
+    }
+
+    private static ThreadInfo waiter(String id, long address) {
+        ThreadLock[] locks = { new ThreadLock(ThreadLock.Kind.WAITING_TO_LOCK, address, -1, -1) };
+        return new ThreadInfo("1", id, -1, "thread-" + id, Thread.State.BLOCKED, 0, new int[0], locks, -1);
+    }
+
+    @Test
+    public void forgetsTheLeastContendedLocks() throws IOException {
+        LocksPrinter locks = new LocksPrinter(config());
+        for (long address = 0; address < 5000; address++) {
+            List<ThreadInfo> threads = new ArrayList<>();
+            threads.add(waiter("1", address));
+            threads.add(waiter("2", -1));
+            threads.add(waiter("3", -1));
+            locks.addSample(threads);
+        }
+        assertTrue(Integer.toString(locks.getLockCount()), locks.getLockCount() <= 1000);
+
+        // the lock waited for in every sample is still first
+        List<String> output = locks.render(new ArrayList<>());
+        int stats = output.indexOf("WAITING  MAX    SAMPLES  LOCK");
+        assertTrue(output.toString(), output.get(stats + 1).startsWith("10000    2      5000     <0xffffffffffffffff>"));
+    }
+}
@@ -0,0 +1,116 @@
+package jtop;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class LongMapTest {
+
+    private static void assertSame(Map<Long, Long> expected, LongMap<Long> map, long maxKey) {
+        assertEquals(expected.size(), map.size());
+        for (long key = -maxKey; key <= maxKey; key++) {
+            assertEquals(expected.get(key), map.get(key));
+        }
+    }
+
+    @Test
+    public void matchesAHashMapUnderDeleteHeavyUse() {
+        Random random = new Random(7);
+        LongMap<Long> map = new LongMap<>();
+        Map<Long, Long> expected = new HashMap<>();
+        for (int op = 0; op < 200000; op++) {
+            long key = random.nextInt(129) - 64;
+            if (random.nextInt(5) < 3) {
+                assertEquals(expected.remove(key), map.remove(key));
+            } else {
+                long value = random.nextLong();
+                assertEquals(expected.put(key, value), map.put(key, value));
+            }
+            if (op % 1000 == 0) {
+                assertSame(expected, map, 64);
+            }
+        }
+        assertSame(expected, map, 64);
+    }
+
+    /**
+     * @return count keys whose home slot in a table of the capacity is slot
+     */
+    private static List<Long> keysAt(int slot, int capacity, int count) {
+        List<Long> keys = new ArrayList<>();
+        for (long key = 1; keys.size() < count; key++) {
+            if ((LongMap.hash(key) & (capacity - 1)) == slot) {
+                keys.add(key);
+            }
+        }
+        return keys;
+    }
+
+    @Test
+    public void removesFromClustersThatWrapAround() {
+        // 16 slots hold up to 7 keys, so these 6 probe from slot 14 past 15 to 0..3
+        List<Long> keys = keysAt(14, 16, 6);
+        for (int removed = 0; removed < keys.size(); removed++) {
+            LongMap<Long> map = new LongMap<>();
+            for (long key : keys) {
+                map.put(key, key * 10);
+            }
+            assertEquals(Long.valueOf(keys.get(removed) * 10), map.remove(keys.get(removed)));
+            assertNull(map.remove(keys.get(removed)));
+            assertEquals(keys.size() - 1, map.size());
+            for (int i = 0; i < keys.size(); i++) {
+                assertEquals(i == removed ? null : Long.valueOf(keys.get(i) * 10), map.get(keys.get(i)));
+            }
+        }
+    }
+
+    @Test
+    public void keepsKeysOfOtherSlotsInsideACluster() {
+        // keys homed at 15 and 0 interleaved with ones homed at 14
+        List<Long> keys = new ArrayList<>();
+        List<Long> at14 = keysAt(14, 16, 3);
+        List<Long> at15 = keysAt(15, 16, 2);
+        List<Long> at0 = keysAt(0, 16, 2);
+        keys.add(at14.get(0));
+        keys.add(at15.get(0));
+        keys.add(at14.get(1));
+        keys.add(at0.get(0));
+        keys.add(at15.get(1));
+        keys.add(at14.get(2));
+        keys.add(at0.get(1));
+
+        LongMap<Long> map = new LongMap<>();
+        Map<Long, Long> expected = new HashMap<>();
+        for (long key : keys) {
+            map.put(key, key);
+            expected.put(key, key);
+        }
+        for (long key : keys) {
+            assertEquals(expected.remove(key), map.remove(key));
+            for (long other : keys) {
+                assertEquals(expected.get(other), map.get(other));
+            }
+        }
+        assertEquals(0, map.size());
+    }
+
+    @Test
+    public void clearsAndIsReusable() {
+        LongMap<Long> map = new LongMap<>();
+        for (long key = 0; key < 1000; key++) {
+            map.put(key, key);
+        }
+        map.clear();
+        assertEquals(0, map.size());
+        assertNull(map.get(5));
+        map.put(5, 50L);
+        assertEquals(Long.valueOf(50), map.get(5));
+    }
+}
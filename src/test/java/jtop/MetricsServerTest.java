@@ -0,0 +1,30 @@
+package jtop;
+
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class MetricsServerTest {
+
+    private static String prometheus(boolean cumulative) {
+        Map<String, Integer> frames = Collections.singletonMap("Work.run()", 3);
+        return new MetricsServer.Snapshot(1000, "1", Collections.emptyList(), 5, frames, cumulative).prometheus();
+    }
+
+    @Test
+    public void stackCountsAreCountersWhenEverySampleCounts() {
+        String metrics = prometheus(true);
+        assertTrue(metrics, metrics.contains("# TYPE jtop_stack_samples_total counter\njtop_stack_samples_total{pid=\"1\"} 5\n"));
+        assertTrue(metrics, metrics.contains("# TYPE jtop_frame_samples_total counter\njtop_frame_samples_total{pid=\"1\",frame=\"Work.run()\"} 3\n"));
+    }
+
+    @Test
+    public void stackCountsAreGaugesInAWindow() {
+        String metrics = prometheus(false);
+        assertTrue(metrics, metrics.contains("# TYPE jtop_stack_samples gauge\njtop_stack_samples{pid=\"1\"} 5\n"));
+        assertTrue(metrics, metrics.contains("# TYPE jtop_frame_samples gauge\njtop_frame_samples{pid=\"1\",frame=\"Work.run()\"} 3\n"));
+    }
+}
@@ -0,0 +1,93 @@
+package jtop;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Test;
+
+public class MultiSamplerTest {
+
+    private static final int[] STACK = { FrameDictionary.intern("Work.run()") };
+
+    /**
+     * Like the jmx sampler: cpu samples have no stacks.
+     */
+    private static class CpuOnlySampler implements Sampler {
+        private final String pid;
+
+        private CpuOnlySampler(String pid) {
+            this.pid = pid;
+        }
+
+        @Override
+        public List<ThreadInfo> sample() {
+            return Collections.singletonList(new ThreadInfo(pid, "1", -1, "main", Thread.State.RUNNABLE, 0, STACK));
+        }
+
+        @Override
+        public List<ThreadInfo> sampleCpu() {
+            return Collections.singletonList(new ThreadInfo(pid, "1", -1, "main", null, 0, new int[0]));
+        }
+
+        @Override
+        public boolean cpuSamplesHaveStacks() {
+            return false;
+        }
+    }
+
+    private static Config config() {
+        Config config = new Config();
+        config.setInterval(100);
+        return config;
+    }
+
+    @Test
+    public void fullSamplesLeaveOutDumpsTakenForCpu() throws Exception {
+        try (MultiSampler sampler = new MultiSampler(config(), Arrays.asList("1"),
+                Arrays.<Sampler>asList(new CpuOnlySampler("1")), 1)) {
+            List<ThreadInfo> cpu = sampler.sampleCpu();
+            assertEquals(1, cpu.size());
+            assertEquals(0, cpu.get(0).getFrames().length);
+
+            // the dump taken for cpu is still the latest one
+            Thread.sleep(20);
+            for (ThreadInfo thread : sampler.sample()) {
+                assertEquals(1, thread.getFrames().length);
+            }
+            Thread.sleep(250);
+            List<ThreadInfo> full = sampler.sample();
+            assertEquals(1, full.size());
+            assertEquals(1, full.get(0).getFrames().length);
+        }
+    }
+
+    @Test
+    public void doesNotWaitForeverForAHungJvm() throws Exception {
+        CountDownLatch hang = new CountDownLatch(1);
+        Sampler hung = () -> {
+            try {
+                hang.await();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            throw new IOException("interrupted");
+        };
+        try (MultiSampler sampler = new MultiSampler(config(), Arrays.asList("1", "2"),
+                Arrays.asList(new CpuOnlySampler("1"), hung), 2)) {
+            long start = System.currentTimeMillis();
+            List<ThreadInfo> threads = sampler.sampleCpu();
+            assertTrue(System.currentTimeMillis() - start < 1000);
+            assertEquals(1, threads.size());
+            assertEquals("1", threads.get(0).getPid());
+            assertEquals("2 JVMs (1 failing)", sampler.getStatus());
+        } finally {
+            hang.countDown();
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package jtop;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+public class ProcfsSamplerTest {
+
+    @Test
+    public void keepsTheLocksOfTheDelegatesThreads() throws IOException {
+        String pid = ManagementFactory.getRuntimeMXBean().getName().split("@")[0];
+        File taskDir = new File("/proc/" + pid + "/task");
+        Assume.assumeTrue(taskDir.isDirectory());
+
+        int frame = FrameDictionary.intern("Work.run()");
+        List<ThreadInfo> dump = new ArrayList<>();
+        for (String tid : taskDir.list()) {
+            ThreadLock[] locks = { new ThreadLock(ThreadLock.Kind.WAITING_TO_LOCK, 0x1000, -1, frame) };
+            dump.add(new ThreadInfo(pid, tid, Long.parseLong(tid), "thread-" + tid, Thread.State.BLOCKED, 0, new int[] { frame }, locks));
+        }
+        Sampler delegate = () -> dump;
+
+        try (ProcfsSampler sampler = new ProcfsSampler(pid, delegate, 10)) {
+            int dumped = 0;
+            for (ThreadInfo thread : sampler.sample()) {
+                // threads started since the task directory was listed have no locks
+                if (thread.getName().startsWith("thread-")) {
+                    assertEquals(1, thread.getLocks().length);
+                    assertEquals(ThreadLock.Kind.WAITING_TO_LOCK, thread.getLocks()[0].getKind());
+                    assertEquals(1, thread.getFrames().length);
+                    dumped++;
+                }
+            }
+            assertTrue(dumped > 0);
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package jtop;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class RecordingTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static int[] stack(String ... frames) {
+        int[] ids = new int[frames.length];
+        for (int i = 0; i < frames.length; i++) {
+            ids[i] = FrameDictionary.intern(frames[i]);
+        }
+        return ids;
+    }
+
+    /**
+     * Three keyframe intervals and a bit of threads whose cpu time sometimes goes
+     * back (a negative delta), whose stacks mostly share their outer frames with
+     * the previous sample, and which come and go.
+     */
+    private static List<List<ThreadInfo>> samples(int count) {
+        Random random = new Random(42);
+        Thread.State[] states = Thread.State.values();
+        long[] cpu = new long[6];
+        List<List<ThreadInfo>> samples = new ArrayList<>();
+        for (int s = 0; s < count; s++) {
+            List<ThreadInfo> threads = new ArrayList<>();
+            for (int t = 0; t < cpu.length; t++) {
+                if (t >= 4 && random.nextInt(3) == 0) {
+                    continue;
+                }
+                cpu[t] += random.nextInt(4) == 0 ? -random.nextInt(1000) : random.nextInt(100000);
+                int depth = random.nextInt(4);
+                String[] frames = new String[depth + 3];
+                for (int d = 0; d < depth; d++) {
+                    frames[d] = "Work" + random.nextInt(5) + ".step" + d + "()";
+                }
+                frames[depth] = "Pool.runWorker()";
+                frames[depth + 1] = "Worker.run()";
+                frames[depth + 2] = "Thread.run()";
+                String name = t == 5 && s > count / 2 ? "renamed" : "thread-" + t;
+                Thread.State state = random.nextInt(5) == 0 ? null : states[random.nextInt(states.length)];
+                threads.add(new ThreadInfo(t % 2 == 0 ? "1" : "2", Integer.toString(t), t == 3 ? -1 : 100 + t,
+                    name, state, cpu[t] / 1000.0, random.nextInt(8) == 0 ? new int[0] : stack(frames)));
+            }
+            samples.add(threads);
+        }
+        return samples;
+    }
+
+    private static void assertSample(List<ThreadInfo> expected, List<ThreadInfo> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            ThreadInfo want = expected.get(i);
+            ThreadInfo got = actual.get(i);
+            assertEquals(want.getPid(), got.getPid());
+            assertEquals(want.getId(), got.getId());
+            assertEquals(want.getNativeId(), got.getNativeId());
+            assertEquals(want.getName(), got.getName());
+            assertEquals(want.getState(), got.getState());
+            assertEquals(want.getCpuTime(), got.getCpuTime(), 0);
+            assertArrayEquals(want.getFrames(), got.getFrames());
+        }
+    }
+
+    private File record(List<List<ThreadInfo>> samples) throws IOException {
+        File file = folder.newFile("recording.jtop");
+        try (Recorder recorder = new Recorder(file, "1")) {
+            for (int i = 0; i < samples.size(); i++) {
+                recorder.write(1000L * i, samples.get(i));
+            }
+        }
+        return file;
+    }
+
+    @Test
+    public void readsBackEverySampleInOrder() throws IOException {
+        List<List<ThreadInfo>> samples = samples(3 * Recorder.KEYFRAME_INTERVAL + 10);
+        try (Recording recording = new Recording(record(samples))) {
+            assertEquals("1", recording.getPid());
+            for (int i = 0; i < samples.size(); i++) {
+                assertTrue(recording.hasSample(i));
+                assertEquals(1000L * i, recording.getTime(i));
+                assertSample(samples.get(i), recording.read(i));
+            }
+            assertFalse(recording.hasSample(samples.size()));
+        }
+    }
+
+    @Test
+    public void seeksFromTheKeyframeBeforeASample() throws IOException {
+        List<List<ThreadInfo>> samples = samples(3 * Recorder.KEYFRAME_INTERVAL + 10);
+        int[] order = { 150, 3, Recorder.KEYFRAME_INTERVAL, Recorder.KEYFRAME_INTERVAL - 1, samples.size() - 1, 0,
+            2 * Recorder.KEYFRAME_INTERVAL + 1, 2 * Recorder.KEYFRAME_INTERVAL, 100, 101, 99 };
+        try (Recording recording = new Recording(record(samples))) {
+            for (int sample : order) {
+                assertSample(samples.get(sample), recording.read(sample));
+            }
+        }
+    }
+
+    @Test
+    public void findsTheSampleAtOrBeforeATime() throws IOException {
+        List<List<ThreadInfo>> samples = samples(20);
+        try (Recording recording = new Recording(record(samples))) {
+            assertEquals(0, recording.findSample(-5000));
+            assertEquals(0, recording.findSample(999));
+            assertEquals(1, recording.findSample(1000));
+            assertEquals(7, recording.findSample(7500));
+            assertEquals(19, recording.findSample(1000000));
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package jtop;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class SamplePipelineTest {
+
+    @Test
+    public void stacksKeepCountingUnderTheCpuViewWithJstack() throws Exception {
+        Config config = new Config();
+        String pid = ManagementFactory.getRuntimeMXBean().getName().split("@")[0];
+        config.setPid(pid);
+        config.setSampler(new JstackSampler(pid, config));
+        TopPrinter top = new TopPrinter(config);
+        StacksPrinter stacks = new StacksPrinter(config);
+        List<Printer> printers = Arrays.asList(top, stacks);
+        config.setPrinters(printers, 0);
+        assertFalse(config.getActive().needsStacks());
+
+        SamplePipeline pipeline = new SamplePipeline(config, printers);
+        pipeline.sample(1000);
+        stacks.runLoop();
+        int samples = stacks.getSamples();
+        assertTrue(Integer.toString(samples), samples > 0);
+        pipeline.sample(2000);
+        stacks.runLoop();
+        assertTrue(stacks.getSamples() > samples);
+    }
+
+    @Test
+    public void cpuSamplesWithoutStacksAreNotFull() throws Exception {
+        Config config = new Config();
+        config.setSampler(new Sampler() {
+            @Override
+            public List<ThreadInfo> sample() {
+                throw new AssertionError("the cpu view only asks for cpu samples");
+            }
+            @Override
+            public List<ThreadInfo> sampleCpu() {
+                return Arrays.asList(new ThreadInfo("1", "1", -1, "main", null, 0, new int[0]));
+            }
+            @Override
+            public boolean cpuSamplesHaveStacks() {
+                return false;
+            }
+        });
+        TopPrinter top = new TopPrinter(config);
+        config.setPrinters(Arrays.asList(top), 0);
+
+        new SamplePipeline(config, Arrays.asList(top)).sample(1000);
+        SamplePipeline.Sample sample = top.nextSample();
+        assertFalse(sample.isFull());
+        assertEquals(1, sample.getThreads().size());
+    }
+}
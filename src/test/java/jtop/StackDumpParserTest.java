@@ -0,0 +1,185 @@
+package jtop;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class StackDumpParserTest {
+
+    private static final String HEADER = "\"pool-1-thread-\"3\"\" #15 daemon prio=5 os_prio=0 cpu=1234.56ms elapsed=99.10s"
+        + " tid=0x00007f3a2c1b2800 nid=0x1a2b waiting for monitor entry  [0x00007f39f8efe000]\n";
+
+    private static List<ThreadInfo> parse(String dump) throws IOException {
+        return StackDumpParser.parse("1", new ByteArrayInputStream(dump.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    @Test
+    public void readsTheHeader() throws IOException {
+        List<ThreadInfo> threads = parse(HEADER
+            + "   java.lang.Thread.State: BLOCKED (on object monitor)\n"
+            + "\tat Cache.get(Cache.java:42)\n"
+            + "\t- waiting to lock <0x000000076b2a1c30> (a java.lang.Object)\n"
+            + "\tat Cache.load(Cache.java:10)\n"
+            + "\t- locked <0x000000076b2a1d00> (a Cache$Entry)\n"
+            + "\tat java.lang.Thread.run(Thread.java:833)\n");
+        assertEquals(1, threads.size());
+        ThreadInfo thread = threads.get(0);
+        assertEquals("1", thread.getPid());
+        assertEquals("0x00007f3a2c1b2800", thread.getId());
+        assertEquals(0x1a2b, thread.getNativeId());
+        assertEquals("pool-1-thread-\"3\"", thread.getName());
+        assertEquals(Thread.State.BLOCKED, thread.getState());
+        assertEquals(1234.56, thread.getCpuTime(), 1e-9);
+
+        String[] frames = {
+            "Cache.get(Cache.java:42)",
+            "- waiting to lock <> (a java.lang.Object)",
+            "Cache.load(Cache.java:10)",
+            "- locked <> (a Cache$Entry)",
+            "java.lang.Thread.run(Thread.java:833)" };
+        assertEquals(frames.length, thread.getFrames().length);
+        for (int i = 0; i < frames.length; i++) {
+            assertEquals(frames[i], FrameDictionary.get(thread.getFrames()[i]));
+        }
+
+        ThreadLock[] locks = thread.getLocks();
+        assertEquals(2, locks.length);
+        assertEquals(ThreadLock.Kind.WAITING_TO_LOCK, locks[0].getKind());
+        assertEquals(0x76b2a1c30L, locks[0].getAddress());
+        assertEquals("java.lang.Object", FrameDictionary.get(locks[0].getClassName()));
+        assertEquals("Cache.get(Cache.java:42)", FrameDictionary.get(locks[0].getFrame()));
+        assertTrue(locks[0].isContended());
+        assertEquals(ThreadLock.Kind.LOCKED, locks[1].getKind());
+        assertEquals(0x76b2a1d00L, locks[1].getAddress());
+        assertEquals("Cache.load(Cache.java:10)", FrameDictionary.get(locks[1].getFrame()));
+    }
+
+    @Test
+    public void readsHeadersWithoutCpuOrNid() throws IOException {
+        List<ThreadInfo> threads = parse("Full thread dump OpenJDK 64-Bit Server VM:\n\n"
+            + "\"Signal Dispatcher\" #4 daemon prio=9 tid=0x00007f3a2c0f8000 runnable [0x0000000000000000]\n"
+            + "   java.lang.Thread.State: RUNNABLE\n\n"
+            + "\"VM Thread\" os_prio=0 tid=0x00007f3a2c0d1000 nid=0x2b01 runnable\n\n"
+            + "JNI global refs: 12, weak refs: 0\n");
+        assertEquals(2, threads.size());
+        assertEquals("Signal Dispatcher", threads.get(0).getName());
+        assertEquals(0, threads.get(0).getCpuTime(), 0);
+        assertEquals(-1, threads.get(0).getNativeId());
+        assertEquals(Thread.State.RUNNABLE, threads.get(0).getState());
+        assertEquals("VM Thread", threads.get(1).getName());
+        assertEquals(0x2b01, threads.get(1).getNativeId());
+        assertNull(threads.get(1).getState());
+        assertEquals(0, threads.get(1).getFrames().length);
+    }
+
+    @Test
+    public void readsParkingAndWaitingLines() throws IOException {
+        List<ThreadInfo> threads = parse(HEADER
+            + "   java.lang.Thread.State: WAITING (parking)\n"
+            + "\tat jdk.internal.misc.Unsafe.park(java.base@17.0.9/Native Method)\n"
+            + "\t- parking to wait for  <0x000000076ab62208> (a java.util.concurrent.locks.AbstractQueuedSynchronizer$ConditionObject)\n"
+            + "\tat Queue.take(Queue.java:5)\n"
+            + "\t- waiting on <0x000000076ab62300> (a Queue)\n"
+            + "\t- waiting to re-lock in wait() <0x000000076ab62300> (a Queue)\n");
+        ThreadLock[] locks = threads.get(0).getLocks();
+        assertEquals(3, locks.length);
+        assertEquals(ThreadLock.Kind.PARKING, locks[0].getKind());
+        // waiting to be signalled isn't contention
+        assertTrue(!locks[0].isContended());
+        assertEquals(ThreadLock.Kind.WAITING_ON, locks[1].getKind());
+        assertEquals(ThreadLock.Kind.WAITING_TO_LOCK, locks[2].getKind());
+        assertEquals(0x76ab62300L, locks[2].getAddress());
+    }
+
+    /**
+     * Returns at most a random few bytes per read, so lines and headers are split
+     * across reads.
+     */
+    private static class ShortReads extends FilterInputStream {
+        private final Random random = new Random(3);
+
+        private ShortReads(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int max = random.nextInt(10) == 0 ? 1 : 1 + random.nextInt(8192);
+            return super.read(b, off, Math.min(len, max));
+        }
+    }
+
+    private static String bigDump() {
+        Random random = new Random(11);
+        StringBuilder dump = new StringBuilder("Full thread dump OpenJDK 64-Bit Server VM:\n\n");
+        for (int t = 0; dump.length() < 3 * 256 * 1024; t++) {
+            dump.append('"').append(t % 7 == 0 ? "quoted \"" + t + "\"" : "worker-" + t).append("\" #").append(t)
+                .append(" prio=5 os_prio=0 cpu=").append(t).append('.').append(t % 100).append("ms elapsed=1.00s tid=0x")
+                .append(Long.toHexString(0x7f0000000000L + t)).append(" nid=0x").append(Integer.toHexString(t + 1))
+                .append(" waiting on condition  [0x00007f39f8efe000]\n");
+            dump.append("   java.lang.Thread.State: ").append(Thread.State.values()[t % 6]).append('\n');
+            int depth = random.nextInt(60);
+            for (int d = 0; d < depth; d++) {
+                dump.append("\tat Frame").append(random.nextInt(300)).append(".call(Frame.java:").append(d).append(")\n");
+                if (random.nextInt(10) == 0) {
+                    dump.append("\t- locked <0x0000000").append(Long.toHexString(0x76ab00000L + random.nextInt(4096)))
+                        .append("> (a java.lang.Object)\n");
+                }
+            }
+            dump.append("\n   Locked ownable synchronizers:\n");
+            if (t % 5 == 0) {
+                dump.append("\t- <0x000000076ab").append(Integer.toHexString(0x10000 + t)).append("> (a java.util.concurrent.locks.ReentrantLock$NonfairSync)\n");
+            } else {
+                dump.append("\t- None\n");
+            }
+            dump.append('\n');
+        }
+        dump.append("JNI global refs: 12, weak refs: 0\n");
+        return dump.toString();
+    }
+
+    @Test
+    public void parallelParseMatchesOneParser() throws IOException {
+        byte[] dump = bigDump().getBytes(StandardCharsets.UTF_8);
+        assertTrue(dump.length > 2 * 256 * 1024);
+
+        List<ThreadInfo> expected = new ArrayList<>();
+        new StackDumpParser("1", expected::add).read(new ByteArrayInputStream(dump));
+        List<ThreadInfo> threads = StackDumpParser.parse("1", new ShortReads(new ByteArrayInputStream(dump)));
+
+        assertEquals(expected.size(), threads.size());
+        for (int i = 0; i < expected.size(); i++) {
+            ThreadInfo want = expected.get(i);
+            ThreadInfo got = threads.get(i);
+            assertEquals(want.getId(), got.getId());
+            assertEquals(want.getNativeId(), got.getNativeId());
+            assertEquals(want.getName(), got.getName());
+            assertEquals(want.getState(), got.getState());
+            assertEquals(want.getCpuTime(), got.getCpuTime(), 0);
+            assertArrayEquals(want.getFrames(), got.getFrames());
+            assertEquals(want.getLocks().length, got.getLocks().length);
+            for (int l = 0; l < want.getLocks().length; l++) {
+                assertEquals(want.getLocks()[l].getKind(), got.getLocks()[l].getKind());
+                assertEquals(want.getLocks()[l].getAddress(), got.getLocks()[l].getAddress());
+                assertEquals(want.getLocks()[l].getFrame(), got.getLocks()[l].getFrame());
+            }
+        }
+        // and the threads are the ones in the dump, in order
+        for (int i = 0; i < threads.size(); i++) {
+            assertEquals(i + 1, threads.get(i).getNativeId());
+        }
+        assertEquals("quoted \"7\"", threads.get(7).getName());
+    }
+}
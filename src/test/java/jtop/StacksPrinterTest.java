@@ -0,0 +1,86 @@
+package jtop;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+public class StacksPrinterTest {
+
+    private static ThreadInfo thread(String id, String ... frames) {
+        int[] ids = new int[frames.length];
+        for (int i = 0; i < frames.length; i++) {
+            ids[i] = FrameDictionary.intern(frames[i]);
+        }
+        return new ThreadInfo("1", id, -1, "thread-" + id, Thread.State.RUNNABLE, 0, ids);
+    }
+
+    private static Config config(String window) {
+        Config config = new Config();
+        config.setPid("1");
+        config.parseStacksLimitPercent("0");
+        config.parseStacksWindow(window);
+        return config;
+    }
+
+    @Test
+    public void windowOnlyKeepsTheStacksInIt() throws IOException {
+        StacksPrinter stacks = new StacksPrinter(config("3"));
+        List<List<ThreadInfo>> samples = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            List<ThreadInfo> sample = new ArrayList<>();
+            sample.add(thread("1", "Worker.task" + i + "()", "Worker.run()", "Thread.run()"));
+            sample.add(thread("2", "Queue.take()", "Thread.run()"));
+            samples.add(sample);
+            stacks.addSample(i * 1000, sample);
+        }
+
+        StacksPrinter fresh = new StacksPrinter(config("3"));
+        for (int i = 97; i < 100; i++) {
+            fresh.addSample(i * 1000, samples.get(i));
+        }
+        // root, Thread.run, Worker.run, Queue.take and the last three tasks
+        assertEquals(7, stacks.render().size());
+        assertEquals(fresh.render(), stacks.render());
+    }
+
+    @Test
+    public void invertedViewFollowsTheWindow() throws IOException {
+        StacksPrinter stacks = new StacksPrinter(config("2"));
+        stacks.handlers.get('v').handle(null);
+        StacksPrinter fresh = new StacksPrinter(config("2"));
+        fresh.handlers.get('v').handle(null);
+        for (int i = 0; i < 10; i++) {
+            List<ThreadInfo> sample = new ArrayList<>();
+            sample.add(thread("1", "Lock.park()", "Pool" + i + ".take()", "Thread.run()"));
+            sample.add(thread("2", "Lock.park()", "Pool.take()", "Thread.run()"));
+            stacks.addSample(i * 1000, sample);
+            if (i >= 8) {
+                fresh.addSample(i * 1000, sample);
+            }
+        }
+
+        assertEquals(fresh.renderMethods(), stacks.renderMethods());
+        assertEquals(fresh.getLines(0, 100), stacks.getLines(0, 100));
+    }
+
+    @Test
+    public void halfLifeDecaysByTheTimeBetweenSamples() throws IOException {
+        Config config = config("10s");
+        // the interval says nothing about when the samples were taken
+        config.setInterval(1000);
+        StacksPrinter stacks = new StacksPrinter(config);
+        stacks.addSample(0, Collections.singletonList(thread("1", "Old.run()")));
+        stacks.addSample(20000, Collections.singletonList(thread("1", "New.run()")));
+
+        // two half-lives later, the new sample weighs four times the old one
+        List<String> lines = stacks.render();
+        assertTrue(lines.toString(), lines.get(1).matches("\\|  New\\.run\\(\\) - 1 \\(80[.,]00 %\\)"));
+        assertTrue(lines.toString(), lines.get(2).matches("\\|  Old\\.run\\(\\) - 0 \\(20[.,]00 %\\)"));
+    }
+}
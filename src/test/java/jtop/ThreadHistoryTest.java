@@ -0,0 +1,111 @@
+package jtop;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import jtop.TopPrinter.Stat;
+
+public class ThreadHistoryTest {
+
+    private static List<ThreadInfo> threads(double ... cpuTimes) {
+        List<ThreadInfo> threads = new ArrayList<>();
+        for (int i = 0; i < cpuTimes.length; i++) {
+            threads.add(new ThreadInfo("1", "0x" + i, i, "thread-" + i, Thread.State.RUNNABLE, cpuTimes[i], new int[0]));
+        }
+        return threads;
+    }
+
+    @Test
+    public void topWithoutLimitReturnsEveryBusyThread() {
+        Config config = new Config();
+        config.parseTopLimit("0");
+        ThreadHistory history = new ThreadHistory();
+        history.add(1000, threads(10, 20, 30));
+        history.add(2000, threads(15, 40, 30));
+
+        List<Stat> top = history.top(config);
+        assertEquals(2, top.size());
+        assertEquals("thread-1", top.get(0).getName());
+        assertEquals(20, top.get(0).getCurrentTime(), 0);
+        assertEquals("thread-0", top.get(1).getName());
+    }
+
+    @Test
+    public void topKeepsTheBusiestUpToTheLimit() {
+        Config config = new Config();
+        config.parseTopLimit("2");
+        ThreadHistory history = new ThreadHistory();
+        history.add(1000, threads(0, 0, 0, 0));
+        history.add(2000, threads(5, 30, 10, 20));
+
+        List<Stat> top = history.top(config);
+        assertEquals(2, top.size());
+        assertEquals("thread-1", top.get(0).getName());
+        assertEquals("thread-3", top.get(1).getName());
+    }
+
+    private static List<ThreadInfo> dump(String pid, long time, double cpuTime) {
+        List<ThreadInfo> threads = new ArrayList<>();
+        threads.add(new ThreadInfo(pid, "0x1", 1, "main", Thread.State.RUNNABLE, cpuTime, new int[0]).withTime(time));
+        return threads;
+    }
+
+    @Test
+    public void takesDeltasBetweenTheDumpsOfEachJvm() {
+        ThreadHistory history = new ThreadHistory();
+        List<ThreadInfo> sample = dump("1", 1000, 0);
+        sample.addAll(dump("2", 1500, 0));
+        history.add(2000, sample);
+
+        // pid 2 was dumped late, 1.5s after its last dump
+        sample = dump("1", 2000, 500);
+        sample.addAll(dump("2", 3000, 1500));
+        history.add(3000, sample);
+
+        ThreadHistory.Entry first = history.get(sample.get(0));
+        ThreadHistory.Entry second = history.get(sample.get(1));
+        assertEquals(1000, first.getElapsed());
+        assertEquals(0.5, first.getAverage(0), 1e-9);
+        assertEquals(1500, second.getElapsed());
+        assertEquals(1.0, second.getAverage(0), 1e-9);
+    }
+
+    @Test
+    public void ignoresADumpSeenTwice() {
+        ThreadHistory history = new ThreadHistory();
+        history.add(1000, dump("1", 1000, 0));
+        history.add(2000, dump("1", 2000, 1000));
+        history.add(3000, dump("1", 2000, 1000));
+
+        ThreadHistory.Entry entry = history.get(dump("1", 2000, 1000).get(0));
+        assertEquals(1000, entry.getCurrentTime(), 0);
+        assertEquals(1, entry.getHistory().length);
+    }
+
+    @Test
+    public void keepsTheThreadsOfAJvmMissingFromASample() {
+        ThreadHistory history = new ThreadHistory();
+        List<ThreadInfo> sample = dump("1", 1000, 0);
+        sample.addAll(dump("2", 1000, 0));
+        history.add(1000, sample);
+        history.add(2000, dump("1", 2000, 10));
+        assertEquals(2, history.size());
+
+        for (long time = 3000; time <= 6000; time += 1000) {
+            history.add(time, dump("1", time, 10));
+        }
+        assertEquals(1, history.size());
+    }
+
+    @Test
+    public void forgetsThreadsThatAreGone() {
+        ThreadHistory history = new ThreadHistory();
+        history.add(1000, threads(1, 2, 3));
+        history.add(2000, threads(1));
+        assertEquals(1, history.size());
+    }
+}
@@ -0,0 +1,39 @@
+package jtop;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+public class TopPrinterTest {
+
+    private static void sample(TopPrinter top, long allocatedBytes) throws Exception {
+        List<ThreadInfo> threads = Collections.singletonList(
+            new ThreadInfo("1", "1", -1, "main", Thread.State.RUNNABLE, 0, new int[0], ThreadLock.NONE, allocatedBytes));
+        top.offer(new SamplePipeline.Sample(1000, threads, false));
+        top.runLoop();
+    }
+
+    @Test
+    public void refusesToRankByAllocationWithoutAllocationCounters() throws Exception {
+        Config config = new Config();
+        TopPrinter top = new TopPrinter(config);
+        sample(top, -1);
+        top.handlers.get('a').handle(null);
+        assertFalse(config.isSortByAllocation());
+    }
+
+    @Test
+    public void ranksByAllocationWithAllocationCounters() throws Exception {
+        Config config = new Config();
+        TopPrinter top = new TopPrinter(config);
+        sample(top, 1024);
+        top.handlers.get('a').handle(null);
+        assertTrue(config.isSortByAllocation());
+        top.handlers.get('a').handle(null);
+        assertFalse(config.isSortByAllocation());
+    }
+}